@@ -1,5 +1,5 @@
 /*
- * Copyright 2011 Sascha H�berling
+ * Copyright 2011 Sascha Hberling
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -38,10 +38,19 @@ import android.widget.ImageButton;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
+import de.haeberling.kapub.standalone.BlockSignature;
+import de.haeberling.kapub.standalone.Config;
+import de.haeberling.kapub.standalone.Deadline;
+import de.haeberling.kapub.standalone.Digests;
 import de.haeberling.kapub.standalone.Issue;
 import de.haeberling.kapub.standalone.Issue.Data;
+import de.haeberling.kapub.standalone.IssueDates;
+import de.haeberling.kapub.standalone.IssueManifest;
+import de.haeberling.kapub.standalone.IssueSource;
 import de.haeberling.kapub.standalone.KaPubTools;
 import de.haeberling.kapub.standalone.LoginData;
+import de.haeberling.kapub.standalone.MirrorClient;
+import de.haeberling.kapub.standalone.VerifyingInputStream;
 
 /**
  * The main activity which deals with logging in, and downloading the PDF to
@@ -58,25 +67,45 @@ public class DownloadActivity extends Activity {
 
   private boolean cancelDownload = false;
 
-  private KaPubTools kaPubTools;
+  /** Set once the issue is downloading and the viewer can be opened. */
+  private volatile Uri issueUri = null;
+  private boolean viewerOpened = false;
 
-  private class DownloadTask extends AsyncTask<Void, Integer, File> {
+  private IssueSource issueSource;
+  private IssueIndex issueIndex;
+
+  private class DownloadTask extends AsyncTask<Void, Long, File> {
     @Override
     protected File doInBackground(Void... params) {
+      File extPath = new File(getExternalFilesDir(null) + File.separator
+          + "issues");
+      Log.d(TAG, "External Path: " + extPath);
+
+      // If we already have today's issue, open it right away and only check
+      // in the background whether it is still the latest one.
+      final IssueManifest.Entry todaysEntry = issueIndex.getForDate(IssueDates
+          .today());
+      if (todaysEntry != null) {
+        File todaysFile = getIssueFile(extPath, todaysEntry.issueId);
+        if (todaysFile.exists()) {
+          Log.i(TAG, "Today's issue is already here: " + todaysFile);
+          startFreshnessCheck(todaysEntry, todaysFile);
+          return todaysFile;
+        }
+        issueIndex.remove(todaysEntry.issueId);
+      }
+
       File issueFile = null;
       try {
-        Issue issue = kaPubTools.getLatestIssue(getFilesDir());
+        // A hung connection must not keep the task running forever.
+        Issue issue = issueSource.getLatestIssue(getFilesDir(),
+            Deadline.after(Config.UPSTREAM_LOOKUP_DEADLINE_MILLIS));
         if (issue == null) {
           Log.e(TAG, "Could not get issue. Aborting.");
           return null;
         }
 
-        Data data = issue.getData();
-
-        publishProgress(1);
-        File extPath = new File(getExternalFilesDir(null) + File.separator
-            + "issues");
-        Log.d(TAG, "External Path: " + extPath);
+        publishProgress(1L);
 
         // Create path if it doesn't exist yet.
         if (!extPath.exists()) {
@@ -84,15 +113,30 @@ public class DownloadActivity extends Activity {
         }
 
         // Create a unique file name.
-        issueFile = new File(extPath, "Kreis-Anzeiger-" + issue.getFileName()
-            + ".pdf");
+        issueFile = getIssueFile(extPath, issue.getFileName());
 
         // If this file already exists, it means we have downloaded it already.
-        // In this case, no need to download again.
+        // In this case, no need to download again. It is indexed, so that the
+        // next start takes the fast path, and a mirror is asked whether it was
+        // corrected since.
         if (issueFile.exists()) {
+          IssueManifest.Entry entry = new IssueManifest.Entry(
+              issue.getFileName(), IssueDates.today(), issueFile.length(),
+              Digests.sha1(issueFile));
+          issueIndex.add(entry);
+          if (issueSource instanceof MirrorClient) {
+            startFreshnessCheck(entry, issueFile);
+          }
           return issueFile;
         }
 
+        // Only now connect for the data, we might not have needed it.
+        Data data = issue.getData();
+        if (data == null) {
+          Log.e(TAG, "Could not get issue data. Aborting.");
+          return null;
+        }
+
         // If the current issue does not exist, delete all previous ones and
         // download the new one.
         File[] oldIssues = extPath.listFiles();
@@ -102,15 +146,40 @@ public class DownloadActivity extends Activity {
             oldIssue.delete();
           }
         }
-        Log.i(TAG, "Downloading into new file: " + issueFile);
-        if (writeToFile(data.stream, issueFile, new Callback<Integer>() {
-          @Override
-          public void onCallback(Integer downloadedBytes) {
-            publishProgress(downloadedBytes);
+        // Download into a partial file which is only renamed once the
+        // download is complete and verified. This way a broken download never
+        // looks like an issue we already have.
+        File partialFile = new File(extPath, issueFile.getName() + ".part");
+        Log.i(TAG, "Downloading into new file: " + partialFile);
+
+        // The viewer can already read the issue while it is downloading.
+        final IssueProvider.Download download = IssueProvider.startDownload(
+            issueFile.getName(), partialFile);
+        final Uri uri = IssueProvider.getUri(issueFile.getName());
+        VerifyingInputStream stream = new VerifyingInputStream(data);
+        try {
+          if (writeToFile(stream, partialFile,
+              new Callback<Long>() {
+                @Override
+                public void onCallback(Long downloadedBytes) {
+                  download.setLength(downloadedBytes);
+                  // The partial file exists now, so it can be served.
+                  issueUri = uri;
+                  publishProgress(downloadedBytes);
+                }
+              })) {
+            if (IssueProvider.finishDownload(issueFile.getName(), issueFile)) {
+              issueIndex.add(new IssueManifest.Entry(issue.getFileName(),
+                  IssueDates.today(), stream.getLength(), stream.getHash()));
+              return issueFile;
+            }
+            Log.e(TAG, "Could not move issue into place: " + issueFile);
           }
-        })) {
-          return issueFile;
+        } finally {
+          download.fail();
+          IssueProvider.endDownload(issueFile.getName());
         }
+        partialFile.delete();
       } catch (IOException e) {
         Log.e(TAG, e.getMessage(), e);
       }
@@ -133,23 +202,111 @@ public class DownloadActivity extends Activity {
       statusView.setText(R.string.done_opening);
       bytesDownloadedView.setText("");
 
-      Intent showPdfIntent = new Intent(android.content.Intent.ACTION_VIEW);
-
-      Uri pdfUri = Uri.fromFile(pdfFile);
-      showPdfIntent.setDataAndType(pdfUri, "application/pdf");
-      showPdfIntent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-      startActivity(Intent.createChooser(showPdfIntent,
-          getString(R.string.open_width)));
+      if (!viewerOpened) {
+        openViewer(IssueProvider.getUri(pdfFile.getName()));
+      }
       finish();
     }
 
     @Override
-    protected void onProgressUpdate(Integer... values) {
+    protected void onProgressUpdate(Long... values) {
       statusView.setText(R.string.downloading_issue);
       bytesDownloadedView.setText(values[0] / 1024 + " KB");
+
+      // Open the viewer as soon as the first bytes are there, the rest is
+      // streamed to it while it is parsing.
+      if (!viewerOpened && issueUri != null && values[0] > 0) {
+        openViewer(issueUri);
+      }
     }
   }
 
+  private void startFreshnessCheck(final IssueManifest.Entry entry,
+      final File issueFile) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        checkFreshness(entry, issueFile);
+      }
+    }, "FreshnessCheck").start();
+  }
+
+  /**
+   * Asks the issue source for the latest issue. If it is not the given one,
+   * the given one is removed from the index so the next download gets the new
+   * one.
+   */
+  private void checkFreshness(IssueManifest.Entry entry, File issueFile) {
+    try {
+      if (issueSource instanceof MirrorClient) {
+        updateFromMirror((MirrorClient) issueSource, entry, issueFile);
+        return;
+      }
+      Issue latestIssue = issueSource.getLatestIssue(getFilesDir(),
+          Deadline.after(Config.UPSTREAM_LOOKUP_DEADLINE_MILLIS));
+      if (latestIssue != null
+          && !latestIssue.getFileName().equals(entry.issueId)) {
+        Log.i(TAG, "A newer issue is available: " + latestIssue.getFileName());
+        issueIndex.remove(entry.issueId);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not check for a newer issue: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Asks the mirror for its latest issue. If that is a new edition of the
+   * given issue, as when the publisher corrected it, only the blocks that
+   * changed are fetched and patched into the local file. If there is a newer
+   * issue, the given one is removed from the index so the next download gets
+   * the new one. If patching fails, the local file goes as well, so that the
+   * next download fetches the new edition in full.
+   */
+  private void updateFromMirror(MirrorClient mirror, IssueManifest.Entry entry,
+      File issueFile) throws IOException {
+    Deadline deadline = Deadline.after(Config.UPSTREAM_LOOKUP_DEADLINE_MILLIS);
+    IssueManifest.Entry latest = mirror.getManifest(deadline).getLatest();
+    if (latest == null || latest.hash.equals(entry.hash)) {
+      return;
+    }
+    if (!latest.date.equals(entry.date)) {
+      Log.i(TAG, "A newer issue is available: " + latest.issueId);
+      issueIndex.remove(entry.issueId);
+      return;
+    }
+
+    Log.i(TAG, "Today's issue was corrected, patching it: " + latest.issueId);
+    File target = getIssueFile(issueFile.getParentFile(), latest.issueId);
+    try {
+      mirror.patchIssue(latest, issueFile,
+          BlockSignature.compute(issueFile, Config.DELTA_BLOCK_SIZE), target,
+          deadline);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not patch today's issue: " + e.getMessage());
+      issueIndex.remove(entry.issueId);
+      issueFile.delete();
+      return;
+    }
+    if (!target.equals(issueFile)) {
+      issueIndex.remove(entry.issueId);
+      issueFile.delete();
+    }
+    issueIndex.add(latest);
+  }
+
+  private static File getIssueFile(File extPath, String issueId) {
+    return new File(extPath, "Kreis-Anzeiger-" + issueId + ".pdf");
+  }
+
+  private void openViewer(Uri pdfUri) {
+    viewerOpened = true;
+    Intent showPdfIntent = new Intent(android.content.Intent.ACTION_VIEW);
+    showPdfIntent.setDataAndType(pdfUri, "application/pdf");
+    showPdfIntent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+    startActivity(Intent.createChooser(showPdfIntent,
+        getString(R.string.open_width)));
+  }
+
   @Override
   public boolean onCreateOptionsMenu(Menu menu) {
     menu.add(Menu.NONE, 1, Menu.CATEGORY_SYSTEM, R.string.settings)
@@ -166,9 +323,14 @@ public class DownloadActivity extends Activity {
         R.string.account_username_key);
     final String accountPasswordKey = getResources().getString(
         R.string.account_password_key);
+    final String mirrorUrlKey = getResources().getString(
+        R.string.mirror_url_key);
+    final String mirrorTokenKey = getResources().getString(
+        R.string.mirror_token_key);
     final SharedPreferences sharedPref = PreferenceManager
         .getDefaultSharedPreferences(this);
 
+    issueIndex = new IssueIndex(new File(getFilesDir(), "issue-index"));
     setContentView(R.layout.activity_download);
     getActionBar().hide();
 
@@ -190,18 +352,25 @@ public class DownloadActivity extends Activity {
       public void onClick(View v) {
         String username = sharedPref.getString(accountUsernameKey, null);
         String password = sharedPref.getString(accountPasswordKey, null);
+        String mirrorUrl = sharedPref.getString(mirrorUrlKey, null);
+        String mirrorToken = sharedPref.getString(mirrorTokenKey, "");
+
+        if (mirrorUrl != null && !mirrorUrl.isEmpty()) {
+          // A local mirror already has the issue, no need to log in.
+          issueSource = new MirrorClient(mirrorUrl, mirrorToken);
+        } else {
+          // Make sure login information has been provided.
+          if (username == null || password == null || username.isEmpty()
+              || password.isEmpty()) {
+            Toast.makeText(DownloadActivity.this,
+                R.string.loginInformationMissing, Toast.LENGTH_LONG).show();
+            return;
+          }
 
-        // Make sure login information has been provided.
-        if (username == null || password == null || username.isEmpty()
-            || password.isEmpty()) {
-          Toast.makeText(DownloadActivity.this,
-              R.string.loginInformationMissing, Toast.LENGTH_LONG).show();
-          return;
+          LoginData loginData = new LoginData(username, password);
+          issueSource = new KaPubTools(loginData);
         }
 
-        LoginData loginData = new LoginData(username, password);
-        kaPubTools = new KaPubTools(loginData);
-
         downloadButton.setVisibility(View.INVISIBLE);
         progressBar.setVisibility(View.VISIBLE);
         DownloadTask downloadTask = new DownloadTask();
@@ -219,22 +388,32 @@ public class DownloadActivity extends Activity {
   @Override
   protected void onPause() {
     super.onPause();
-    cancelDownload = true;
+    // The viewer reads the issue while it is downloading, so opening it must
+    // not cancel the download.
+    cancelDownload = !viewerOpened;
   }
 
+  /**
+   * Writes the given stream to the given file. Returns false if the download
+   * was cancelled or failed, including failing verification.
+   */
   private boolean writeToFile(InputStream stream, File tempFile,
-      Callback<Integer> progressCallback) {
+      Callback<Long> progressCallback) {
     try {
       FileOutputStream fos = new FileOutputStream(tempFile);
-      byte[] buffer = new byte[4096];
-      int length = 0;
-      int total = 0;
-      while ((length = stream.read(buffer)) > 0 && !cancelDownload) {
-        fos.write(buffer, 0, length);
-        total += length;
-        progressCallback.onCallback(total);
+      try {
+        byte[] buffer = new byte[4096];
+        int length = 0;
+        long total = 0;
+        while ((length = stream.read(buffer)) != -1 && !cancelDownload) {
+          fos.write(buffer, 0, length);
+          total += length;
+          progressCallback.onCallback(total);
+        }
+      } finally {
+        fos.close();
+        stream.close();
       }
-      fos.close();
       return !cancelDownload;
     } catch (IOException e) {
       Log.e(TAG, e.getMessage(), e);
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+import android.util.Log;
+import de.haeberling.kapub.standalone.AtomicFiles;
+import de.haeberling.kapub.standalone.IssueManifest;
+
+/**
+ * The persisted index of the issues downloaded to this device and their
+ * publication dates. It lets the app find today's issue without asking the
+ * server first.
+ */
+public class IssueIndex {
+  private static final String TAG = IssueIndex.class.getSimpleName();
+
+  private final File file;
+  // Guarded by 'this'.
+  private IssueManifest manifest;
+
+  public IssueIndex(File file) {
+    this.file = file;
+    this.manifest = load();
+  }
+
+  /**
+   * Returns the downloaded issue published on the given date or
+   * <code>null</code> if there is none.
+   */
+  public synchronized IssueManifest.Entry getForDate(String date) {
+    return manifest.getEntryForDate(date);
+  }
+
+  /**
+   * Adds the given issue to the index.
+   */
+  public synchronized void add(IssueManifest.Entry entry) {
+    manifest = manifest.with(entry);
+    save();
+  }
+
+  /**
+   * Removes the issue with the given ID from the index.
+   */
+  public synchronized void remove(String issueId) {
+    manifest = manifest.without(issueId);
+    save();
+  }
+
+  private IssueManifest load() {
+    if (file.exists()) {
+      try {
+        InputStreamReader reader = new InputStreamReader(new FileInputStream(
+            file), "UTF-8");
+        try {
+          StringBuilder content = new StringBuilder();
+          char[] buffer = new char[1024];
+          int num;
+          while ((num = reader.read(buffer)) != -1) {
+            content.append(buffer, 0, num);
+          }
+          return IssueManifest.parse(content.toString());
+        } finally {
+          reader.close();
+        }
+      } catch (IOException ex) {
+        Log.w(TAG, "Could not read issue index: " + ex.getMessage());
+      }
+    }
+    return new IssueManifest(new ArrayList<IssueManifest.Entry>());
+  }
+
+  private void save() {
+    try {
+      AtomicFiles.write(file, manifest.serialize().getBytes("UTF-8"));
+    } catch (IOException ex) {
+      // Without the index we only lose the fast path.
+      Log.w(TAG, "Could not write issue index: " + ex.getMessage());
+    }
+  }
+}
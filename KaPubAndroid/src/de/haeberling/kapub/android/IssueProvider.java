@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+/**
+ * Serves issues to PDF viewers, also while they are still being downloaded.
+ * <p>
+ * A finished issue is served as its file. An issue that is still downloading
+ * is served through a pipe: a thread copies the partial file into the pipe and
+ * waits for more bytes whenever it catches up with the download. This way the
+ * viewer can start parsing right away instead of waiting for the whole issue.
+ */
+public class IssueProvider extends ContentProvider {
+  private static final String TAG = IssueProvider.class.getSimpleName();
+  private static final String AUTHORITY = "de.haeberling.kapub.android.issues";
+
+  /** An issue being downloaded into a file. */
+  public static class Download {
+    private final File file;
+    // All guarded by 'this'.
+    private long length = 0;
+    private boolean finished = false;
+    private boolean failed = false;
+
+    private Download(File file) {
+      this.file = file;
+    }
+
+    /** Tells readers that more bytes have been written to the file. */
+    public synchronized void setLength(long newLength) {
+      length = newLength;
+      notifyAll();
+    }
+
+    /** Tells readers that the file is complete. */
+    private synchronized void finish() {
+      finished = true;
+      notifyAll();
+    }
+
+    /**
+     * Tells readers that the download failed and no more bytes will come. Does
+     * nothing if the download already finished.
+     */
+    public synchronized void fail() {
+      if (!finished) {
+        failed = true;
+        notifyAll();
+      }
+    }
+
+    /**
+     * Waits until there are bytes beyond the given position and returns how
+     * many bytes the file has, or -1 if it is complete.
+     */
+    private synchronized long awaitBeyond(long position) throws IOException {
+      while (length <= position && !finished && !failed) {
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          throw new IOException("Interrupted while waiting for data.");
+        }
+      }
+      if (failed) {
+        throw new IOException("Download failed.");
+      }
+      return length > position ? length : -1;
+    }
+  }
+
+  private static final Map<String, Download> downloads = new HashMap<String, Download>();
+
+  /**
+   * Returns the content URI of the issue with the given file name.
+   */
+  public static Uri getUri(String fileName) {
+    return new Uri.Builder().scheme("content").authority(AUTHORITY)
+        .appendPath(fileName).build();
+  }
+
+  /**
+   * Registers a download into the given file, which is served under the given
+   * file name until it is finished.
+   */
+  public static Download startDownload(String fileName, File file) {
+    Download download = new Download(file);
+    synchronized (downloads) {
+      downloads.put(fileName, download);
+    }
+    return download;
+  }
+
+  /**
+   * Moves the file of the finished download of the given file name to the
+   * given file, which is served from then on. Readers that already started
+   * keep reading the moved file. Returns whether the file could be moved.
+   */
+  public static boolean finishDownload(String fileName, File target) {
+    // Under the same lock as openFile, so no reader looks up the download and
+    // then misses its file.
+    synchronized (downloads) {
+      Download download = downloads.get(fileName);
+      if (download == null || !download.file.renameTo(target)) {
+        return false;
+      }
+      download.finish();
+      downloads.remove(fileName);
+      return true;
+    }
+  }
+
+  /**
+   * Removes the download of the given file name once it is done. Readers that
+   * already started keep reading.
+   */
+  public static void endDownload(String fileName) {
+    synchronized (downloads) {
+      downloads.remove(fileName);
+    }
+  }
+
+  @Override
+  public boolean onCreate() {
+    return true;
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    return "application/pdf";
+  }
+
+  @Override
+  public Cursor query(Uri uri, String[] projection, String selection,
+      String[] selectionArgs, String sortOrder) {
+    // Viewers ask for the display name. The size is unknown while downloading.
+    File file = getIssueFile(uri);
+    MatrixCursor cursor = new MatrixCursor(new String[] {
+        OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE });
+    cursor.addRow(new Object[] { uri.getLastPathSegment(),
+        file.exists() ? file.length() : null });
+    return cursor;
+  }
+
+  @Override
+  public ParcelFileDescriptor openFile(Uri uri, String mode)
+      throws FileNotFoundException {
+    Download download;
+    final InputStream input;
+    synchronized (downloads) {
+      download = downloads.get(uri.getLastPathSegment());
+      // Open the partial file while it cannot be moved. If the download
+      // finishes afterwards and the file is moved, we keep reading it anyway.
+      input = download != null ? new FileInputStream(download.file) : null;
+    }
+    if (download == null) {
+      return ParcelFileDescriptor.open(getIssueFile(uri),
+          ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+    final ParcelFileDescriptor[] pipe;
+    try {
+      pipe = ParcelFileDescriptor.createPipe();
+    } catch (IOException ex) {
+      try {
+        input.close();
+      } catch (IOException closeEx) {
+        // Nothing left to do.
+      }
+      throw new FileNotFoundException("Could not create pipe: "
+          + ex.getMessage());
+    }
+    final Download streamedDownload = download;
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        OutputStream output = new ParcelFileDescriptor.AutoCloseOutputStream(
+            pipe[1]);
+        try {
+          stream(streamedDownload, input, output);
+        } catch (IOException ex) {
+          Log.w(TAG, "Streaming issue stopped: " + ex.getMessage());
+        } finally {
+          try {
+            input.close();
+            output.close();
+          } catch (IOException ex) {
+            // Nothing left to do.
+          }
+        }
+      }
+    }, "IssueProvider").start();
+    return pipe[0];
+  }
+
+  /**
+   * Copies the file of the download into the output, blocking whenever it
+   * catches up with the download.
+   */
+  private static void stream(Download download, InputStream input,
+      OutputStream output) throws IOException {
+    byte[] buffer = new byte[8192];
+    long position = 0;
+    while (true) {
+      long available = download.awaitBeyond(position);
+      int toRead = available < 0 ? buffer.length : (int) Math.min(
+          buffer.length, available - position);
+      int num = input.read(buffer, 0, toRead);
+      if (num == -1) {
+        if (available < 0) {
+          return;
+        }
+        throw new IOException("Issue file shorter than expected.");
+      }
+      output.write(buffer, 0, num);
+      position += num;
+    }
+  }
+
+  private File getIssueFile(Uri uri) {
+    return new File(new File(getContext().getExternalFilesDir(null), "issues"),
+        uri.getLastPathSegment());
+  }
+
+  @Override
+  public Uri insert(Uri uri, ContentValues values) {
+    throw new UnsupportedOperationException("Issues are read-only.");
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException("Issues are read-only.");
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection,
+      String[] selectionArgs) {
+    throw new UnsupportedOperationException("Issues are read-only.");
+  }
+}
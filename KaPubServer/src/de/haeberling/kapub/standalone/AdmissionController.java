@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.util.logging.Logger;
+
+/**
+ * Limits how many expensive requests, the ones that have to wait for upstream,
+ * are worked on at the same time.
+ * <p>
+ * Requests over the limit wait in a short queue. If the queue is full or a
+ * request waited too long, it is rejected so the caller can answer with a 503
+ * right away instead of piling up threads. The limit adapts to the latency of
+ * the requests: it grows by about one per limit's worth of requests that were
+ * fast and succeeded, and shrinks by a tenth whenever one was slow or failed.
+ */
+public class AdmissionController {
+  private static final Logger log = Logger.getLogger(AdmissionController.class
+      .getName());
+  private static final double DECREASE_FACTOR = 0.9;
+  private static final double LATENCY_SMOOTHING = 0.2;
+
+  /** Permission to run one request. Must be released exactly once. */
+  public class Permit {
+    private final long startMillis = System.currentTimeMillis();
+    private boolean released = false;
+
+    /**
+     * Releases this permit. Whether the request succeeded is used to adapt
+     * the limit.
+     */
+    public void release(boolean success) {
+      synchronized (AdmissionController.this) {
+        if (released) {
+          return;
+        }
+        released = true;
+        onRelease(System.currentTimeMillis() - startMillis, success);
+      }
+    }
+  }
+
+  private final String name;
+  private final int minLimit;
+  private final int maxLimit;
+  private final int maxQueue;
+  private final long targetLatencyMillis;
+  private final long maxWaitMillis;
+
+  // All guarded by 'this'.
+  private double limit;
+  private int inFlight = 0;
+  private int waiting = 0;
+  private double averageLatencyMillis;
+
+  /**
+   * @param name the name used for counters.
+   * @param minLimit the lowest concurrency limit.
+   * @param maxLimit the highest concurrency limit, also the initial one.
+   * @param maxQueue how many requests may wait for a slot.
+   * @param targetLatencyMillis requests slower than this shrink the limit.
+   * @param maxWaitMillis how long a request may wait for a slot.
+   */
+  public AdmissionController(String name, int minLimit, int maxLimit,
+      int maxQueue, long targetLatencyMillis, long maxWaitMillis) {
+    this.name = name;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.maxQueue = maxQueue;
+    this.targetLatencyMillis = targetLatencyMillis;
+    this.maxWaitMillis = maxWaitMillis;
+    this.limit = maxLimit;
+    this.averageLatencyMillis = targetLatencyMillis / 2;
+    Counters.set(counter("limit"), maxLimit);
+  }
+
+  /**
+   * Returns a permit to run a request, waiting for a free slot if necessary.
+   * Returns <code>null</code> if the request should be rejected.
+   */
+  public synchronized Permit acquire() {
+    if (inFlight < (int) limit) {
+      return admit();
+    }
+    if (waiting >= maxQueue) {
+      return reject("queue full");
+    }
+    waiting++;
+    try {
+      long deadline = System.currentTimeMillis() + maxWaitMillis;
+      while (inFlight >= (int) limit) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return reject("waited too long");
+        }
+        wait(remaining);
+      }
+      return admit();
+    } catch (InterruptedException ex) {
+      return reject("interrupted");
+    } finally {
+      waiting--;
+    }
+  }
+
+  /**
+   * Returns how many seconds a rejected client should wait before retrying,
+   * based on how long requests currently take.
+   */
+  public synchronized int getRetryAfterSeconds() {
+    return (int) Math.max(1, Math.ceil(averageLatencyMillis / 1000));
+  }
+
+  private Permit admit() {
+    inFlight++;
+    Counters.increment(counter("admitted"));
+    Counters.set(counter("in_flight"), inFlight);
+    return new Permit();
+  }
+
+  private Permit reject(String reason) {
+    log.warning("Rejecting " + name + " request: " + reason);
+    Counters.increment(counter("rejected"));
+    return null;
+  }
+
+  private void onRelease(long latencyMillis, boolean success) {
+    inFlight--;
+    averageLatencyMillis += LATENCY_SMOOTHING
+        * (latencyMillis - averageLatencyMillis);
+    if (!success || latencyMillis > targetLatencyMillis) {
+      limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+    } else {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+    Counters.set(counter("limit"), (long) limit);
+    Counters.set(counter("in_flight"), inFlight);
+    notifyAll();
+  }
+
+  private String counter(String event) {
+    return "admission." + name + "." + event;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes small files such that readers, also in other processes, either see
+ * the old or the new content but never a partially written file.
+ */
+public class AtomicFiles {
+  private AtomicFiles() {
+  }
+
+  /**
+   * Replaces the content of the given file with the given bytes.
+   * <p>
+   * The content goes to a uniquely named temporary file next to the target
+   * first, which is then renamed over the target. Concurrent writers therefore
+   * never mix their content; the last one wins.
+   */
+  public static void write(File file, byte[] content) throws IOException {
+    // Temporary file prefixes need at least three characters.
+    File tempFile = File.createTempFile(file.getName() + "...", ".tmp",
+        file.getAbsoluteFile().getParentFile());
+    try {
+      FileOutputStream output = new FileOutputStream(tempFile);
+      try {
+        output.write(content);
+        // Make sure the content is on disk before it becomes visible.
+        output.getFD().sync();
+      } finally {
+        output.close();
+      }
+      if (!tempFile.renameTo(file)) {
+        // Some platforms don't replace existing files when renaming.
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+          throw new IOException("Could not replace " + file);
+        }
+      }
+    } finally {
+      if (tempFile.exists()) {
+        tempFile.delete();
+      }
+    }
+  }
+}
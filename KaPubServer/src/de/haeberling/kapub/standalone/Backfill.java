@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Fills the gaps in the issue store by fetching the issues of missing dates.
+ * <p>
+ * A fixed number of workers fetch in parallel, and the starts of their
+ * upstream requests are spaced out so that the publisher's site is not
+ * hammered. Every finished date is written to a checkpoint file, including
+ * dates on which no issue was published, so an interrupted backfill continues
+ * where it stopped. Failed dates are not recorded and are retried by the next
+ * run. Dates recorded without an issue can be looked up again with
+ * {@value #RETRY_NONE_FLAG}.
+ */
+public class Backfill {
+  private static final Logger log = Logger.getLogger(Backfill.class.getName());
+  private static final String STORED = "stored";
+  private static final String NONE = "none";
+  /** Also looks up the dates recorded without an issue again. */
+  public static final String RETRY_NONE_FLAG = "--retry-none";
+
+  private final KaPubTools tools;
+  private final IssueStore store;
+  private final File cacheDirectory;
+  private final File checkpointFile;
+  private final int threads;
+  private final long minIntervalMillis;
+  private final boolean retryNone;
+
+  // Both guarded by 'this'.
+  private final Map<String, String> checkpoint;
+  private long nextStartMillis = 0;
+
+  /**
+   * @param cacheDirectory the directory holding the session.
+   * @param threads how many dates are fetched in parallel.
+   * @param minIntervalMillis the minimum time between the starts of two
+   *          fetches.
+   * @param retryNone whether dates recorded without an issue count as missing,
+   *          e.g. after an earlier run mistook error pages for them.
+   */
+  public Backfill(KaPubTools tools, IssueStore store, File cacheDirectory,
+      File checkpointFile, int threads, long minIntervalMillis,
+      boolean retryNone) {
+    this.tools = tools;
+    this.store = store;
+    this.cacheDirectory = cacheDirectory;
+    this.checkpointFile = checkpointFile;
+    this.threads = threads;
+    this.minIntervalMillis = minIntervalMillis;
+    this.retryNone = retryNone;
+    this.checkpoint = loadCheckpoint();
+  }
+
+  /**
+   * Returns the dates within the given range that are neither in the store
+   * nor known to have no issue, unless those are retried.
+   */
+  public synchronized List<String> getMissingDates(String first, String last) {
+    List<String> missing = new ArrayList<String>();
+    IssueManifest manifest = store.getManifest();
+    for (String date : IssueDates.range(first, last)) {
+      String outcome = checkpoint.get(date);
+      if (manifest.getEntryForDate(date) == null
+          && (outcome == null || retryNone && outcome.equals(NONE))) {
+        missing.add(date);
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * Fetches the issues of all missing dates within the given range and waits
+   * until they are done. Returns how many dates failed.
+   */
+  public int run(String first, String last) throws InterruptedException {
+    List<String> missing = getMissingDates(first, last);
+    log.info("Backfilling " + missing.size() + " dates with " + threads
+        + " workers.");
+    final AtomicInteger failures = new AtomicInteger();
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    for (final String date : missing) {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (!backfill(date)) {
+            failures.incrementAndGet();
+          }
+        }
+      });
+    }
+    workers.shutdown();
+    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    log.info("Backfill done, " + failures.get() + " dates failed.");
+    return failures.get();
+  }
+
+  /**
+   * Fetches and stores the issue of the given date. Returns whether this
+   * succeeded, which includes finding out there is no issue.
+   */
+  private boolean backfill(String date) {
+    try {
+      waitForTurn();
+      PhaseEvent event = PhaseEvent.begin("backfill").set("date", date);
+      try {
+        Issue issue = tools.getIssueForDate(cacheDirectory, date,
+            Deadline.after(Config.UPSTREAM_LOOKUP_DEADLINE_MILLIS));
+        if (issue == null) {
+          event.set("outcome", NONE);
+          record(date, NONE);
+          return true;
+        }
+        store.store(issue, date);
+        event.set("outcome", STORED);
+        record(date, STORED);
+        return true;
+      } finally {
+        event.commit();
+      }
+    } catch (IOException ex) {
+      log.warning("Could not backfill " + date + ": " + ex.getMessage());
+      Counters.increment("backfill.failures");
+      return false;
+    } catch (InterruptedException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Blocks until at least the minimum interval has passed since the previous
+   * fetch started.
+   */
+  private void waitForTurn() throws InterruptedException {
+    long startMillis;
+    synchronized (this) {
+      startMillis = Math.max(System.currentTimeMillis(), nextStartMillis);
+      nextStartMillis = startMillis + minIntervalMillis;
+    }
+    long waitMillis = startMillis - System.currentTimeMillis();
+    if (waitMillis > 0) {
+      Thread.sleep(waitMillis);
+    }
+  }
+
+  private synchronized void record(String date, String outcome)
+      throws IOException {
+    checkpoint.put(date, outcome);
+    Counters.increment("backfill." + outcome);
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, String> entry : checkpoint.entrySet()) {
+      text.append(entry.getKey()).append(' ').append(entry.getValue())
+          .append('\n');
+    }
+    AtomicFiles.write(checkpointFile, text.toString().getBytes("UTF-8"));
+  }
+
+  private Map<String, String> loadCheckpoint() {
+    Map<String, String> dates = new TreeMap<String, String>();
+    if (!checkpointFile.exists()) {
+      return dates;
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(checkpointFile), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] parts = line.trim().split(" ");
+          if (parts.length == 2) {
+            dates.put(parts[0], parts[1]);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      log.info("Resuming backfill, " + dates.size() + " dates already done.");
+    } catch (IOException ex) {
+      log.warning("Could not read backfill checkpoint: " + ex.getMessage());
+    }
+    return dates;
+  }
+
+  /**
+   * Backfills the store of the server. Arguments are the first and last date
+   * as yyyy-MM-dd, optionally followed by the account to fetch with. They may
+   * be preceded by {@value #RETRY_NONE_FLAG}.
+   */
+  public static void main(String[] args) throws Exception {
+    boolean retryNone = args.length > 0 && args[0].equals(RETRY_NONE_FLAG);
+    if (retryNone) {
+      args = Arrays.copyOfRange(args, 1, args.length);
+    }
+    if (args.length < 2 || args.length > 3 || IssueDates.parse(args[0]) == null
+        || IssueDates.parse(args[1]) == null) {
+      System.err.println("Usage: Backfill [" + RETRY_NONE_FLAG
+          + "] <first yyyy-MM-dd> <last yyyy-MM-dd> [account]");
+      System.exit(1);
+    }
+    File dataDirectory = new File(
+        Config.SHARED_PATH.isEmpty() ? Config.CACHE_PATH : Config.SHARED_PATH);
+    IssueStore store = IssueStore.open(new File(dataDirectory,
+        Config.ISSUE_STORE_DIR));
+    if (store == null) {
+      System.exit(1);
+    }
+    SessionPool sessionPool = new SessionPool(dataDirectory,
+        Config.SESSION_POOL_MAX_SESSIONS, Config.SESSION_IDLE_MILLIS);
+    SessionPool.Session session = sessionPool
+        .acquire(args.length == 3 ? args[2] : sessionPool.getDefaultAccount());
+    int failures;
+    try {
+      Backfill backfill = new Backfill(session.getTools(), store,
+          session.getDirectory(), new File(dataDirectory,
+              Config.BACKFILL_CHECKPOINT_FILE), Config.BACKFILL_THREADS,
+          Config.BACKFILL_MIN_INTERVAL_MILLIS, retryNone);
+      failures = backfill.run(args[0], args[1]);
+    } finally {
+      session.release();
+    }
+    System.exit(failures == 0 ? 0 : 2);
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a file into the instructions to rebuild it from an older version of
+ * which only the {@link BlockSignature} is known, and back.
+ * <p>
+ * A delta is a sequence of operations: copy a block of the old file, or insert
+ * literal bytes. Blocks are found at any offset, like rsync does, so content
+ * that merely moved is not sent again.
+ */
+public class BlockDelta {
+  private static final int MAGIC = 0x4b504431; // "KPD1"
+  private static final int OP_END = 0;
+  private static final int OP_COPY = 1;
+  private static final int OP_DATA = 2;
+  private static final int MAX_LITERAL = 64 * 1024;
+
+  private BlockDelta() {
+  }
+
+  /**
+   * Writes the delta that turns the file of the given signature into the data
+   * of the given stream, which has the given length and is read to the end but
+   * not closed. Only a window of the data is held in memory. Returns the number
+   * of bytes written.
+   */
+  public static long compute(BlockSignature signature, InputStream input,
+      long length, OutputStream stream) throws IOException {
+    DataOutputStream output = new DataOutputStream(stream);
+    output.writeInt(MAGIC);
+    output.writeInt(signature.getBlockSize());
+    output.writeLong(length);
+
+    int blockSize = signature.getBlockSize();
+    Map<Integer, List<Integer>> blocks = indexFullBlocks(signature);
+    MessageDigest md5 = Digests.md5();
+    // Holds the literal bytes not written yet and the block after them.
+    byte[] data = new byte[MAX_LITERAL + 2 * blockSize];
+    long read = 0;
+    int literalStart = 0;
+    int pos = 0;
+    int limit = 0;
+    boolean eof = false;
+    int checksum = 0;
+    boolean checksumValid = false;
+    while (true) {
+      if (pos + blockSize > limit && !eof) {
+        if (pos - literalStart >= MAX_LITERAL) {
+          writeData(output, data, literalStart, pos);
+          literalStart = pos;
+        }
+        System.arraycopy(data, literalStart, data, 0, limit - literalStart);
+        pos -= literalStart;
+        limit -= literalStart;
+        literalStart = 0;
+        int num = 0;
+        while (limit < data.length
+            && (num = input.read(data, limit, data.length - limit)) != -1) {
+          limit += num;
+          read += num;
+        }
+        eof = num == -1;
+      }
+      if (pos + blockSize > limit) {
+        break;
+      }
+      if (!checksumValid) {
+        checksum = BlockSignature.weakChecksum(data, pos, blockSize);
+        checksumValid = true;
+      }
+
+      int match = -1;
+      List<Integer> candidates = blocks.get(checksum);
+      if (candidates != null) {
+        md5.update(data, pos, blockSize);
+        byte[] hash = md5.digest();
+        for (int block : candidates) {
+          if (signature.hasStrongHash(block, hash)) {
+            match = block;
+            break;
+          }
+        }
+      }
+      if (match >= 0) {
+        writeData(output, data, literalStart, pos);
+        output.writeByte(OP_COPY);
+        output.writeInt(match);
+        pos += blockSize;
+        literalStart = pos;
+        checksumValid = false;
+      } else if (pos + blockSize < limit) {
+        checksum = BlockSignature.rollChecksum(checksum, blockSize, data[pos],
+            data[pos + blockSize]);
+        ++pos;
+      } else {
+        // The next byte is not read yet.
+        ++pos;
+        checksumValid = false;
+      }
+    }
+    if (read != length) {
+      throw new IOException("Read " + read + " bytes, expected " + length);
+    }
+
+    // A short last block can only match the end of the data.
+    int lastBlock = signature.getBlockCount() - 1;
+    int end = limit;
+    if (lastBlock >= 0 && signature.getBlockLength(lastBlock) < blockSize) {
+      int lastLength = signature.getBlockLength(lastBlock);
+      int tailStart = limit - lastLength;
+      if (tailStart >= literalStart
+          && BlockSignature.weakChecksum(data, tailStart, lastLength)
+              == signature.getWeakChecksum(lastBlock)) {
+        md5.update(data, tailStart, lastLength);
+        if (signature.hasStrongHash(lastBlock, md5.digest())) {
+          end = tailStart;
+        }
+      }
+    }
+    writeData(output, data, literalStart, end);
+    if (end < limit) {
+      output.writeByte(OP_COPY);
+      output.writeInt(lastBlock);
+    }
+    output.writeByte(OP_END);
+    output.flush();
+    return output.size();
+  }
+
+  /**
+   * Rebuilds the new file from the old one and a delta read from the given
+   * stream, which is not closed. Returns the number of bytes written.
+   *
+   * @throws IOException if the delta is invalid or does not fit the old file.
+   */
+  public static long apply(RandomAccessFile oldFile, InputStream stream,
+      OutputStream output) throws IOException {
+    DataInputStream input = new DataInputStream(stream);
+    if (input.readInt() != MAGIC) {
+      throw new IOException("Not a block delta.");
+    }
+    int blockSize = input.readInt();
+    long expectedLength = input.readLong();
+    if (blockSize < BlockSignature.MIN_BLOCK_SIZE
+        || blockSize > BlockSignature.MAX_BLOCK_SIZE) {
+      throw new IOException("Invalid block size: " + blockSize);
+    }
+    byte[] buffer = new byte[Math.max(blockSize, MAX_LITERAL)];
+    long length = 0;
+    int op;
+    while ((op = input.readUnsignedByte()) != OP_END) {
+      int num;
+      if (op == OP_COPY) {
+        long offset = (long) input.readInt() * blockSize;
+        if (offset < 0 || offset >= oldFile.length()) {
+          throw new IOException("Delta refers to a block beyond the old file.");
+        }
+        num = (int) Math.min(blockSize, oldFile.length() - offset);
+        oldFile.seek(offset);
+        oldFile.readFully(buffer, 0, num);
+      } else if (op == OP_DATA) {
+        num = input.readInt();
+        if (num <= 0 || num > MAX_LITERAL) {
+          throw new IOException("Invalid literal length: " + num);
+        }
+        input.readFully(buffer, 0, num);
+      } else {
+        throw new IOException("Invalid delta operation: " + op);
+      }
+      output.write(buffer, 0, num);
+      length += num;
+    }
+    if (length != expectedLength) {
+      throw new IOException("Delta gave " + length + " bytes, expected "
+          + expectedLength);
+    }
+    return length;
+  }
+
+  private static Map<Integer, List<Integer>> indexFullBlocks(
+      BlockSignature signature) {
+    Map<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+    for (int i = 0; i < signature.getBlockCount(); ++i) {
+      if (signature.getBlockLength(i) < signature.getBlockSize()) {
+        continue;
+      }
+      List<Integer> candidates = blocks.get(signature.getWeakChecksum(i));
+      if (candidates == null) {
+        candidates = new ArrayList<Integer>(1);
+        blocks.put(signature.getWeakChecksum(i), candidates);
+      }
+      candidates.add(i);
+    }
+    return blocks;
+  }
+
+  /** Writes the given range as literal data. */
+  private static void writeData(DataOutputStream output, byte[] data,
+      int start, int end) throws IOException {
+    for (int offset = start; offset < end; offset += MAX_LITERAL) {
+      int num = Math.min(MAX_LITERAL, end - offset);
+      output.writeByte(OP_DATA);
+      output.writeInt(num);
+      output.write(data, offset, num);
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The rsync-style signature of a file: a weak rolling checksum and a strong
+ * hash for each of its fixed-size blocks. Whoever has a newer version of the
+ * file can use it to send only the blocks that changed, see
+ * {@link BlockDelta}.
+ */
+public class BlockSignature {
+  /** Smaller blocks would make signatures larger than what they save. */
+  public static final int MIN_BLOCK_SIZE = 512;
+  public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+  private static final int MAGIC = 0x4b505331; // "KPS1"
+  /** No file we deal with comes close to this many blocks. */
+  private static final int MAX_BLOCKS = 1 << 20;
+
+  private final int blockSize;
+  private final long length;
+  private final int[] weak;
+  private final byte[][] strong;
+
+  private BlockSignature(int blockSize, long length, int[] weak,
+      byte[][] strong) {
+    this.blockSize = blockSize;
+    this.length = length;
+    this.weak = weak;
+    this.strong = strong;
+  }
+
+  /**
+   * Computes the signature of the given stream, which is read to the end but
+   * not closed.
+   */
+  public static BlockSignature compute(InputStream input, int blockSize)
+      throws IOException {
+    int capacity = 64;
+    int[] weak = new int[capacity];
+    byte[][] strong = new byte[capacity][];
+    MessageDigest md5 = Digests.md5();
+    byte[] block = new byte[blockSize];
+    long length = 0;
+    int count = 0;
+    int filled;
+    while ((filled = readBlock(input, block)) > 0) {
+      if (count == capacity) {
+        capacity *= 2;
+        weak = Arrays.copyOf(weak, capacity);
+        strong = Arrays.copyOf(strong, capacity);
+      }
+      weak[count] = weakChecksum(block, 0, filled);
+      md5.update(block, 0, filled);
+      strong[count] = md5.digest();
+      length += filled;
+      ++count;
+    }
+    return new BlockSignature(blockSize, length, Arrays.copyOf(weak, count),
+        Arrays.copyOf(strong, count));
+  }
+
+  /**
+   * Computes the signature of the given file.
+   */
+  public static BlockSignature compute(File file, int blockSize)
+      throws IOException {
+    InputStream input = new BufferedInputStream(new FileInputStream(file));
+    try {
+      return compute(input, blockSize);
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Reads a signature as written by {@link #write(OutputStream)}. The stream is
+   * not closed.
+   */
+  public static BlockSignature read(InputStream stream) throws IOException {
+    DataInputStream input = new DataInputStream(stream);
+    if (input.readInt() != MAGIC) {
+      throw new IOException("Not a block signature.");
+    }
+    int blockSize = input.readInt();
+    long length = input.readLong();
+    int count = input.readInt();
+    if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+        || length < 0 || count < 0 || count > MAX_BLOCKS
+        || count != (length + blockSize - 1) / blockSize) {
+      throw new IOException("Invalid block signature.");
+    }
+    int[] weak = new int[count];
+    byte[][] strong = new byte[count][];
+    for (int i = 0; i < count; ++i) {
+      weak[i] = input.readInt();
+      strong[i] = new byte[16];
+      input.readFully(strong[i]);
+    }
+    return new BlockSignature(blockSize, length, weak, strong);
+  }
+
+  /**
+   * Writes this signature to the given stream, which is flushed but not
+   * closed.
+   */
+  public void write(OutputStream stream) throws IOException {
+    DataOutputStream output = new DataOutputStream(stream);
+    output.writeInt(MAGIC);
+    output.writeInt(blockSize);
+    output.writeLong(length);
+    output.writeInt(weak.length);
+    for (int i = 0; i < weak.length; ++i) {
+      output.writeInt(weak[i]);
+      output.write(strong[i]);
+    }
+    output.flush();
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** The length of the signed file in bytes. */
+  public long getLength() {
+    return length;
+  }
+
+  public int getBlockCount() {
+    return weak.length;
+  }
+
+  /** The length of the given block. Only the last one may be short. */
+  public int getBlockLength(int block) {
+    return (int) Math.min(blockSize, length - (long) block * blockSize);
+  }
+
+  public int getWeakChecksum(int block) {
+    return weak[block];
+  }
+
+  /**
+   * Returns whether the given block has the given MD5 hash.
+   */
+  public boolean hasStrongHash(int block, byte[] hash) {
+    return Arrays.equals(strong[block], hash);
+  }
+
+  /**
+   * Returns the weak checksum of the given bytes, as used by rsync: the sum of
+   * the bytes and the sum of the running sums, 16 bits each.
+   */
+  public static int weakChecksum(byte[] data, int offset, int length) {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < length; ++i) {
+      a += data[offset + i] & 0xff;
+      b += (length - i) * (data[offset + i] & 0xff);
+    }
+    return (a & 0xffff) | (b << 16);
+  }
+
+  /**
+   * Returns the weak checksum of the window that is one byte further than the
+   * one with the given checksum. The window has the given length, drops the
+   * byte 'out' and adds the byte 'in'.
+   */
+  public static int rollChecksum(int checksum, int length, byte out, byte in) {
+    int a = checksum & 0xffff;
+    int b = checksum >>> 16;
+    a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+    b = (b - length * (out & 0xff) + a) & 0xffff;
+    return a | (b << 16);
+  }
+
+  private static int readBlock(InputStream input, byte[] block)
+      throws IOException {
+    int filled = 0;
+    int num;
+    while (filled < block.length
+        && (num = input.read(block, filled, block.length - filled)) != -1) {
+      filled += num;
+    }
+    return filled;
+  }
+}
@@ -18,13 +18,23 @@ package de.haeberling.kapub.standalone;
 
 /**
  * Various configuration flags.
+ * <p>
+ * A few of them can be overridden with "kapub.&lt;name&gt;" system properties,
+ * e.g. to point the server at a fake upstream in the soak test.
  */
 public class Config {
+  /**
+   * The publisher's site. Can be overridden with the "kapub.upstream" system
+   * property.
+   */
+  public static final String UPSTREAM_URL = get("upstream",
+      "http://www.kreis-anzeiger.de");
+
   /**
    * Against this URL we will make the initial request to get the session ID as
    * well as the login POST request.
    */
-  public static final String LOGIN_URL = "http://www.kreis-anzeiger.de/epaper/login.php";
+  public static final String LOGIN_URL = UPSTREAM_URL + "/epaper/login.php";
 
   /**
    * This is used as the value for "r" in the login form request. Probably a
@@ -36,16 +46,267 @@ public class Config {
   /**
    * This URL is the site which contains the links to the current issue.
    */
-  public static final String MAIN_URL = "http://www.kreis-anzeiger.de/epaper/overview.php";
+  public static final String MAIN_URL = UPSTREAM_URL + "/epaper/overview.php";
+
+  /**
+   * The overview page of the issue of a given date, in
+   * {@link #ISSUE_BY_DATE_FORMAT}. NOTE: Adjust if the site changes its archive
+   * parameter.
+   */
+  public static final String ISSUE_BY_DATE_URL = MAIN_URL + "?datum=%s";
+
+  /**
+   * The date format the site uses for {@link #ISSUE_BY_DATE_URL}. The archive
+   * page shows its date the same way, which tells it from a login or error
+   * page. NOTE: Adjust if the site changes how it shows the date.
+   */
+  public static final String ISSUE_BY_DATE_FORMAT = "dd.MM.yyyy";
 
   /**
    * The PDF URL is relative, so we need to prepend the host of the nav URL.
    */
-  public static final String NAV_URL_HOST = "http://www.kreis-anzeiger.de/epaper";
+  public static final String NAV_URL_HOST = UPSTREAM_URL + "/epaper";
 
   /** The user-agent string to use for requests to the KA website. */
   public static final String LOGIN_REQUEST_USERAGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_7_2) AppleWebKit/535.7 (KHTML, like Gecko) Chrome/16.0.912.63 Safari/535.7";
 
-  /** This is where we store temporary runtime data such as caches. */
-  public static final String CACHE_PATH = "./cache";
+  /** Timeout for loading the session or logging in, in milliseconds. */
+  public static final long SESSION_TIMEOUT_MILLIS = 20000;
+
+  /** Timeout for scraping the overview page, in milliseconds. */
+  public static final long OVERVIEW_TIMEOUT_MILLIS = 15000;
+
+  /** Connect timeout for upstream connections, in milliseconds. */
+  public static final long UPSTREAM_CONNECT_TIMEOUT_MILLIS = 10000;
+
+  /**
+   * How long we wait for the response headers of an upstream request and
+   * between two reads of its body, in milliseconds.
+   */
+  public static final long UPSTREAM_READ_TIMEOUT_MILLIS = 20000;
+
+  /**
+   * How long looking up an issue may take in total, including logging in,
+   * retries and backoff. Downloads are only bounded by the read timeout.
+   */
+  public static final long UPSTREAM_LOOKUP_DEADLINE_MILLIS = 45000;
+
+  /** How often a failing upstream call is attempted before giving up. */
+  public static final int UPSTREAM_MAX_ATTEMPTS = 3;
+
+  /** The base delay of the exponential backoff between attempts. */
+  public static final long UPSTREAM_BACKOFF_BASE_MILLIS = 500;
+
+  /** The maximum delay between two attempts. */
+  public static final long UPSTREAM_BACKOFF_MAX_MILLIS = 8000;
+
+  /** How many upstream latencies are kept to compute the hedging delay. */
+  public static final int UPSTREAM_LATENCY_SAMPLES = 100;
+
+  /** How many latencies are needed before the hedging delay is computed. */
+  public static final int UPSTREAM_MIN_LATENCY_SAMPLES = 10;
+
+  /** Hedging delay used as long as there are not enough latency samples. */
+  public static final long HEDGE_DEFAULT_DELAY_MILLIS = 3000;
+
+  /** The hedging delay never gets shorter than this. */
+  public static final long HEDGE_MIN_DELAY_MILLIS = 250;
+
+  /** After this many consecutive failures, the circuit breaker opens. */
+  public static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+
+  /** How long an open circuit rejects calls before letting a trial through. */
+  public static final long CIRCUIT_OPEN_MILLIS = 60000;
+
+  /**
+   * How long the latest issue is served without checking upstream. Can be
+   * overridden with the "kapub.latestIssueFreshMillis" system property.
+   */
+  public static final long LATEST_ISSUE_FRESH_MILLIS = Long.parseLong(get(
+      "latestIssueFreshMillis", String.valueOf(5 * 60 * 1000)));
+
+  /**
+   * How long the latest issue is served immediately while it is revalidated in
+   * the background. After that, requests wait for the lookup.
+   */
+  public static final long LATEST_ISSUE_MAX_STALE_MILLIS = 24 * 60 * 60 * 1000;
+
+  /** How long a failed lookup of the latest issue is remembered. */
+  public static final long LATEST_ISSUE_NEGATIVE_TTL_MILLIS = 60 * 1000;
+
+  /**
+   * The total bandwidth in bytes per second that concurrent PDF downloads
+   * share. NOTE: Set a value greater than zero to enable fair scheduling.
+   */
+  public static final long TRANSFER_BYTES_PER_SECOND = 0;
+
+  /** How many bytes a download of weight 1 may send per scheduling turn. */
+  public static final int TRANSFER_CHUNK_SIZE = 16 * 1024;
+
+  /** The scheduling weight of a regular PDF download. */
+  public static final int TRANSFER_DEFAULT_WEIGHT = 1;
+
+  /** How long clients may cache the icons, in seconds. */
+  public static final int STATIC_ASSET_MAX_AGE_SECONDS = 7 * 24 * 60 * 60;
+
+  /** The file within the cache path holding the secret for signing URLs. */
+  public static final String URL_SECRET_FILE = "url-secret";
+
+  /** The minimum time a signed issue URL stays valid, in seconds. */
+  public static final long SIGNED_URL_TTL_SECONDS = 60 * 60;
+
+  /**
+   * If set to "X-Accel-Redirect" (nginx) or "X-Sendfile" (Apache, lighttpd),
+   * authorized PDF requests are answered with this header only and the reverse
+   * proxy in front of the server sends and caches the file.
+   */
+  public static final String OFFLOAD_HEADER = "";
+
+  /**
+   * The internal location of the issue store in the reverse proxy, used for
+   * X-Accel-Redirect.
+   */
+  public static final String OFFLOAD_LOCATION = "/kapub-issues/";
+
+  /**
+   * A directory shared by several server nodes, e.g. on NFS. If set, the
+   * session, the URL secret and the issue store are kept there instead of the
+   * cache path, and only one node at a time fetches from upstream while the
+   * others wait for and serve what it published.
+   */
+  public static final String SHARED_PATH = "";
+
+  /** The lock file within the shared path that elects the fetching node. */
+  public static final String FETCH_LOCK_FILE = "fetch.lock";
+
+  /** How long a node waits for another node's upstream fetch. */
+  public static final long FETCH_LOCK_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+  /** How long a node waits for another node to update the issue manifest. */
+  public static final long MANIFEST_LOCK_TIMEOUT_MILLIS = 30 * 1000;
+
+  /** The path prefix under which issues are served by date, yyyy-MM-dd. */
+  public static final String ISSUE_BY_DATE_PATH = "/issue/";
+
+  /** How many days back issues may be requested by date. */
+  public static final int ISSUE_BY_DATE_MAX_DAYS = 62;
+
+  /** How many dates a backfill fetches in parallel. */
+  public static final int BACKFILL_THREADS = 3;
+
+  /** The minimum time between the starts of two backfill fetches. */
+  public static final long BACKFILL_MIN_INTERVAL_MILLIS = 1000;
+
+  /** The file within the data directory that tracks backfilled dates. */
+  public static final String BACKFILL_CHECKPOINT_FILE = "backfill-checkpoint";
+
+  /** The path of the Server-Sent Events stream announcing new issues. */
+  public static final String EVENTS_PATH = "/events";
+
+  /** How many clients may listen to the event stream at the same time. */
+  public static final int EVENTS_MAX_CLIENTS = 1000;
+
+  /** How often idle event streams get a keep-alive comment. */
+  public static final long EVENTS_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+  /** How many threads write to event stream clients. */
+  public static final int EVENTS_WRITER_THREADS = 4;
+
+  /**
+   * How many writes may queue up for an event stream client that does not
+   * keep up before it is dropped. Keep-alives count as well.
+   */
+  public static final int EVENTS_MAX_QUEUED = 8;
+
+  /** How long a single write to an event stream client may take. */
+  public static final long EVENTS_WRITE_TIMEOUT_MILLIS = 60 * 1000;
+
+  /**
+   * How many requests that wait for upstream may run at the same time, at
+   * most and at least. The limit in between adapts to their latency.
+   */
+  public static final int ADMISSION_MAX_LIMIT = 16;
+  public static final int ADMISSION_MIN_LIMIT = 2;
+
+  /** How many requests that wait for upstream may queue for a slot. */
+  public static final int ADMISSION_MAX_QUEUE = 32;
+
+  /** Requests that wait for upstream longer than this lower the limit. */
+  public static final long ADMISSION_TARGET_LATENCY_MILLIS = 15 * 1000;
+
+  /** How long a request may queue for a slot before it gets a 503. */
+  public static final long ADMISSION_MAX_WAIT_MILLIS = 5 * 1000;
+
+  /**
+   * The local secret file with the subscriber accounts, one
+   * "&lt;name&gt; &lt;username&gt; &lt;password&gt;" line each. Kept in the data
+   * directory.
+   */
+  public static final String ACCOUNTS_FILE = "accounts";
+
+  /** The directory the sessions of the accounts are kept in. */
+  public static final String ACCOUNTS_DIR = "sessions";
+
+  /** The request parameter naming the account to fetch an issue with. */
+  public static final String ACCOUNT_PARAM = "account";
+
+  /** How many accounts may have a session open at the same time. */
+  public static final int SESSION_POOL_MAX_SESSIONS = 16;
+
+  /** After how long without use the session of an account is evicted. */
+  public static final long SESSION_IDLE_MILLIS = 30 * 60 * 1000;
+
+  /**
+   * This is where we store temporary runtime data such as caches. Can be
+   * overridden with the "kapub.cachePath" system property.
+   */
+  public static final String CACHE_PATH = get("cachePath", "./cache");
+
+  /** The directory within the cache path where downloaded issues are kept. */
+  public static final String ISSUE_STORE_DIR = "issues";
+
+  /**
+   * The token mirror clients have to provide to fetch the manifest and issues.
+   * NOTE: Set a value to enable mirror mode.
+   */
+  public static final String MIRROR_AUTH_TOKEN = "";
+
+  /** The path under which a mirror serves its manifest. */
+  public static final String MIRROR_MANIFEST_PATH = "/manifest";
+
+  /** The path prefix under which a mirror serves issue PDFs. */
+  public static final String MIRROR_ISSUE_PATH = "/mirror/";
+
+  /**
+   * The path prefix under which a mirror serves the changes of an issue
+   * against the block signature of an older edition a client posts.
+   */
+  public static final String MIRROR_DELTA_PATH = "/delta/";
+
+  /** The size of the blocks of an issue's signature. */
+  public static final int DELTA_BLOCK_SIZE = 8 * 1024;
+
+  /** The request parameter that asks for the lite edition of an issue. */
+  public static final String LITE_PARAM = "lite";
+
+  /**
+   * The maximum width and height in pixels of the images in the lite edition.
+   */
+  public static final int LITE_MAX_IMAGE_SIZE = 1024;
+
+  /** The JPEG quality of the images in the lite edition, from 0 to 1. */
+  public static final float LITE_JPEG_QUALITY = 0.5f;
+
+  /** Issues are transcoded in memory, so larger ones get no lite edition. */
+  public static final long LITE_MAX_FILE_BYTES = 32 * 1024 * 1024;
+
+  /**
+   * Images with more pixels than this are left as they are, since even
+   * subsampled they take too long to decode.
+   */
+  public static final long LITE_MAX_SOURCE_PIXELS = 64L * 1024 * 1024;
+
+  private static String get(String name, String defaultValue) {
+    return System.getProperty("kapub." + name, defaultValue);
+  }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * The body of an HTTP connection, which disconnects once it is closed. Closing
+ * the plain stream of a connection that was not read to the end would leave
+ * its socket open.
+ */
+public class ConnectionInputStream extends FilterInputStream {
+  private final HttpURLConnection connection;
+
+  public ConnectionInputStream(HttpURLConnection connection)
+      throws IOException {
+    super(connection.getInputStream());
+    this.connection = connection;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
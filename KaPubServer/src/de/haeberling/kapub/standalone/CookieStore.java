@@ -19,48 +19,74 @@ package de.haeberling.kapub.standalone;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
  * Cookie store stores and retrieves cookie information form disk.
+ * <p>
+ * There is one store per cache directory, so that every account keeps its own
+ * session. Callers that replace the session synchronize on the store.
  */
 public class CookieStore {
   private static final Logger log = Logger.getLogger(CookieStore.class
       .getName());
-  private static CookieStore instance;
+  private static final Map<String, CookieStore> instances = new HashMap<String, CookieStore>();
   private final File cacheFile;
 
   /**
-   * Returns a usable CookieStore or <code>null</code> if it could not be
-   * created.
+   * Returns a usable CookieStore for the given directory or <code>null</code>
+   * if it could not be created.
    */
   public static CookieStore get(File cacheDirectory) {
-    if (instance == null) {
-      log.info("Instantiating new cookie store.");
-      if (!cacheDirectory.exists()) {
-        if (!cacheDirectory.mkdirs()) {
-          log.severe("Could not create cache directory.");
-          return null;
+    String key = cacheDirectory.getAbsolutePath();
+    synchronized (instances) {
+      CookieStore instance = instances.get(key);
+      if (instance == null) {
+        instance = create(cacheDirectory);
+        if (instance != null) {
+          instances.put(key, instance);
         }
       }
-      File cacheFile = new File(cacheDirectory, "cookies");
-      if (!cacheFile.exists()) {
-        try {
-          cacheFile.createNewFile();
-        } catch (IOException ex) {
-          log.severe("Could not create cookie cache file.");
-          return null;
-        }
+      return instance;
+    }
+  }
+
+  /**
+   * Forgets the store of the given directory. The session stays on disk, so
+   * that a later store, a restart or another node sharing the directory can
+   * still use it.
+   */
+  public static void remove(File cacheDirectory) {
+    synchronized (instances) {
+      instances.remove(cacheDirectory.getAbsolutePath());
+    }
+  }
+
+  private static CookieStore create(File cacheDirectory) {
+    log.info("Instantiating new cookie store in " + cacheDirectory);
+    if (!cacheDirectory.exists()) {
+      if (!cacheDirectory.mkdirs()) {
+        log.severe("Could not create cache directory.");
+        return null;
       }
-      if (!cacheFile.canWrite()) {
-        log.severe("Cannot write to cookie cache file.");
+    }
+    File cacheFile = new File(cacheDirectory, "cookies");
+    if (!cacheFile.exists()) {
+      try {
+        cacheFile.createNewFile();
+      } catch (IOException ex) {
+        log.severe("Could not create cookie cache file.");
         return null;
       }
-      instance = new CookieStore(cacheFile);
     }
-    return instance;
+    if (!cacheFile.canWrite()) {
+      log.severe("Cannot write to cookie cache file.");
+      return null;
+    }
+    return new CookieStore(cacheFile);
   }
 
   private CookieStore(File cacheFile) {
@@ -68,13 +94,13 @@ public class CookieStore {
   }
 
   /**
-   * Stores the given cookie data in a file.
+   * Stores the given cookie data in a file. The file is replaced atomically,
+   * so that readers, also on other nodes sharing the cache directory, never
+   * see a partially written session.
    */
   public void storeCookieToFile(CookieData data) throws IOException {
     log.info("Storing cookie data to file.");
-    FileWriter writer = new FileWriter(cacheFile);
-    writer.write(data.cmsSessionId + "\n");
-    writer.close();
+    AtomicFiles.write(cacheFile, (data.cmsSessionId + "\n").getBytes("UTF-8"));
   }
 
   /**
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide named counters, exported by the server on its stats page.
+ */
+public class Counters {
+  private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+  private Counters() {
+  }
+
+  /**
+   * Increments the counter with the given name by one.
+   */
+  public static void increment(String name) {
+    add(name, 1);
+  }
+
+  /**
+   * Adds the given value to the counter with the given name.
+   */
+  public static void add(String name, long value) {
+    get(name).addAndGet(value);
+  }
+
+  /**
+   * Sets the counter with the given name to the given value. Useful for gauges.
+   */
+  public static void set(String name, long value) {
+    get(name).set(value);
+  }
+
+  /**
+   * Returns the current value of the counter with the given name.
+   */
+  public static long value(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter != null ? counter.get() : 0;
+  }
+
+  /**
+   * Returns all counters in the form <code>name value</code>, one per line and
+   * sorted by name.
+   */
+  public static String format() {
+    Map<String, AtomicLong> sorted = new TreeMap<String, AtomicLong>(counters);
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, AtomicLong> entry : sorted.entrySet()) {
+      text.append(entry.getKey()).append(' ').append(entry.getValue().get())
+          .append('\n');
+    }
+    return text.toString();
+  }
+
+  private static AtomicLong get(String name) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = counters.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    return counter;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * The point in time by which a request or job has to be done with upstream.
+ * <p>
+ * The deadline is handed down through every phase of a lookup. Each socket
+ * gets its connect and read timeouts from the configured ones, capped by the
+ * time that is left, and requests still running when the deadline expires
+ * are aborted.
+ */
+public class Deadline {
+  /** No deadline. Sockets still get the configured timeouts. */
+  public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+  /** Shared timer thread used to abort requests at their deadline. */
+  private static ScheduledExecutorService timer;
+
+  private final long expiresAt;
+
+  private Deadline(long expiresAt) {
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Returns a deadline that expires the given number of milliseconds from now.
+   */
+  public static Deadline after(long millis) {
+    return new Deadline(System.currentTimeMillis() + millis);
+  }
+
+  /**
+   * Returns how many milliseconds are left, zero if the deadline expired.
+   */
+  public long getRemainingMillis() {
+    if (this == NONE) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, expiresAt - System.currentTimeMillis());
+  }
+
+  public boolean isExpired() {
+    return getRemainingMillis() == 0;
+  }
+
+  /**
+   * Throws if the deadline expired before the given step could start.
+   */
+  public void check(String step) throws InterruptedIOException {
+    if (isExpired()) {
+      Counters.increment("deadline.expired");
+      throw new InterruptedIOException("Deadline expired before " + step);
+    }
+  }
+
+  /**
+   * Returns the connect timeout for a new connection.
+   */
+  public int getConnectTimeoutMillis() {
+    return cap(Config.UPSTREAM_CONNECT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Returns the timeout for waiting on the response headers and between two
+   * reads of the response body.
+   */
+  public int getReadTimeoutMillis() {
+    return cap(Config.UPSTREAM_READ_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Applies the timeouts to the given connection.
+   */
+  public void apply(HttpURLConnection urlConn) {
+    urlConn.setConnectTimeout(getConnectTimeoutMillis());
+    urlConn.setReadTimeout(getReadTimeoutMillis());
+  }
+
+  /**
+   * Returns a new client whose connections use the timeouts.
+   */
+  public DefaultHttpClient newHttpClient() {
+    DefaultHttpClient client = new DefaultHttpClient();
+    HttpParams params = client.getParams();
+    HttpConnectionParams.setConnectionTimeout(params,
+        getConnectTimeoutMillis());
+    HttpConnectionParams.setSoTimeout(params, getReadTimeoutMillis());
+    return client;
+  }
+
+  /**
+   * Aborts the given request should it still run when the deadline expires.
+   * Returns the scheduled abort, which can be cancelled once the request is
+   * done, or <code>null</code> if there is no deadline.
+   */
+  public Future<?> abortOnExpiry(final HttpUriRequest request) {
+    if (this == NONE) {
+      return null;
+    }
+    return getTimer().schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!request.isAborted()) {
+          Counters.increment("deadline.aborted");
+          request.abort();
+        }
+      }
+    }, getRemainingMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Caps the given timeout by the time that is left. Never returns zero, which
+   * would mean no timeout at all.
+   */
+  private int cap(long timeoutMillis) {
+    return (int) Math.max(1, Math.min(timeoutMillis, getRemainingMillis()));
+  }
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Deadline-Timer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+}
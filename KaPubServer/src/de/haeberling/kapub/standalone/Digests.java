@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for hashing issue content.
+ */
+public class Digests {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private Digests() {
+  }
+
+  /**
+   * Returns a new SHA-1 digest. Every JVM is required to support SHA-1, so
+   * this does not throw.
+   */
+  public static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 not available.", e);
+    }
+  }
+
+  /**
+   * Returns a new MD5 digest, which is required to be supported as well.
+   */
+  public static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available.", e);
+    }
+  }
+
+  /**
+   * Returns the SHA-1 of the given file as hex.
+   */
+  public static String sha1(File file) throws IOException {
+    MessageDigest digest = sha1();
+    InputStream input = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int num;
+      while ((num = input.read(buffer)) != -1) {
+        digest.update(buffer, 0, num);
+      }
+    } finally {
+      input.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Returns the lower-case hex representation of the given bytes.
+   */
+  public static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; ++i) {
+      hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+      hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(hex);
+  }
+}
@@ -16,6 +16,7 @@
 
 package de.haeberling.kapub.standalone;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -24,11 +25,19 @@ import java.io.InputStream;
 public class Issue {
   public static class Data {
     public final InputStream stream;
-    public final int contentLength;
+    /** The length of the stream in bytes, or -1 if unknown. */
+    public final long contentLength;
+    /** The SHA-1 of the stream as hex, or <code>null</code> if unknown. */
+    public final String sha1;
 
-    public Data(InputStream stream, int contentLength) {
+    public Data(InputStream stream, long contentLength) {
+      this(stream, contentLength, null);
+    }
+
+    public Data(InputStream stream, long contentLength, String sha1) {
       this.stream = stream;
       this.contentLength = contentLength;
+      this.sha1 = sha1;
     }
   }
 
@@ -36,12 +45,21 @@ public class Issue {
     public Data getData();
   }
 
+  /** Tells the length of an issue without fetching its data. */
+  public interface LengthProvider {
+    /** Returns the length in bytes, or -1 if it is unknown. */
+    public long getLength() throws IOException;
+  }
+
   /** A unique ID for this issue. */
   private final String issueId;
 
   /** Provides the data for this issue. */
   private DataProvider dataProvider;
 
+  /** Provides the length of this issue, if possible without its data. */
+  private LengthProvider lengthProvider;
+
   public Issue(String issueId) {
     this.issueId = issueId;
   }
@@ -57,4 +75,16 @@ public class Issue {
   public Data getData() {
     return this.dataProvider.getData();
   }
+
+  public void setLengthProvider(LengthProvider lengthProvider) {
+    this.lengthProvider = lengthProvider;
+  }
+
+  /**
+   * Returns the length of this issue in bytes without fetching its data, or
+   * -1 if that is not possible.
+   */
+  public long getLength() throws IOException {
+    return lengthProvider != null ? lengthProvider.getLength() : -1;
+  }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Helpers for the publication dates of issues, which we write as yyyy-MM-dd.
+ */
+public class IssueDates {
+  private static final String FORMAT = "yyyy-MM-dd";
+
+  private IssueDates() {
+  }
+
+  /**
+   * Returns today's date.
+   */
+  public static String today() {
+    return format(new Date());
+  }
+
+  /**
+   * Parses the given date. Returns <code>null</code> if it is not a valid
+   * yyyy-MM-dd date.
+   */
+  public static Date parse(String date) {
+    if (date == null || !date.matches("\\d{4}-\\d{2}-\\d{2}")) {
+      return null;
+    }
+    SimpleDateFormat format = new SimpleDateFormat(FORMAT, Locale.US);
+    format.setLenient(false);
+    try {
+      return format.parse(date);
+    } catch (ParseException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns whether the given date is valid and at most the given number of
+   * days in the past. Dates in the future are never valid.
+   */
+  public static boolean isWithinDays(String date, int days) {
+    Date parsed = parse(date);
+    if (parsed == null) {
+      return false;
+    }
+    Calendar earliest = Calendar.getInstance();
+    earliest.add(Calendar.DAY_OF_MONTH, -days);
+    return !parsed.after(new Date())
+        && format(earliest.getTime()).compareTo(date) <= 0;
+  }
+
+  /**
+   * Returns all dates from the first to the last one, both inclusive.
+   */
+  public static List<String> range(String first, String last) {
+    List<String> dates = new ArrayList<String>();
+    Date lastDate = parse(last);
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(parse(first));
+    while (!calendar.getTime().after(lastDate)) {
+      dates.add(format(calendar.getTime()));
+      calendar.add(Calendar.DAY_OF_MONTH, 1);
+    }
+    return dates;
+  }
+
+  /**
+   * Converts the given date into the format the publisher's site expects.
+   */
+  public static String toUpstream(String date) {
+    return new SimpleDateFormat(Config.ISSUE_BY_DATE_FORMAT, Locale.US)
+        .format(parse(date));
+  }
+
+  private static String format(Date date) {
+    return new SimpleDateFormat(FORMAT, Locale.US).format(date);
+  }
+}
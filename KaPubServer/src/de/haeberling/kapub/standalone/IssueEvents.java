@@ -0,0 +1,404 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * Pushes new issues to clients as Server-Sent Events.
+ * <p>
+ * A client's response is kept open after the request was handled, so idle
+ * clients don't occupy any thread. Events, as well as a comment now and then
+ * to keep connections alive, are queued per client and written by a small
+ * pool of threads, never while holding a lock. A client that stops reading
+ * falls behind and is dropped once its queue is full. Its response is closed
+ * by a writer thread as well, since that blocks just like a write. A write
+ * that takes too long cannot be interrupted, so another thread takes over for
+ * the blocked one until it returns, and the other clients keep getting their
+ * events.
+ */
+public class IssueEvents {
+  private static final Logger log = Logger.getLogger(IssueEvents.class
+      .getName());
+  private static final String ENCODING = "UTF-8";
+
+  /**
+   * An open event stream. It stays in the list of clients until its response
+   * was closed, so that a close that blocks is noticed like a write.
+   */
+  private static class Client {
+    final Response response;
+    final OutputStream output;
+    // All guarded by 'this'.
+    final LinkedList<String> queue = new LinkedList<String>();
+    String lastEventId;
+    boolean writing = false;
+    long writeStartedAt = 0;
+    boolean stalled = false;
+    boolean closed = false;
+
+    Client(Response response, OutputStream output) {
+      this.response = response;
+      this.output = output;
+    }
+  }
+
+  private final int maxClients;
+  private final int maxQueued;
+  private final long writeTimeoutMillis;
+  private final ScheduledExecutorService timer;
+  private final ThreadPoolExecutor writers;
+  // All guarded by 'clients'.
+  private final List<Client> clients = new ArrayList<Client>();
+  // Subscribed clients that were not added yet.
+  private int pending = 0;
+  private IssueManifest.Entry latest = null;
+
+  /**
+   * @param maxClients how many clients may listen at the same time.
+   * @param writerThreads how many threads write to clients.
+   * @param maxQueued how many writes may queue up for a client before it is
+   *          dropped.
+   * @param keepAliveMillis how often idle connections are checked.
+   * @param writeTimeoutMillis how long a single write to a client may take
+   *          before it is dropped.
+   */
+  public IssueEvents(int maxClients, int writerThreads, int maxQueued,
+      long keepAliveMillis, long writeTimeoutMillis) {
+    this.maxClients = maxClients;
+    this.maxQueued = maxQueued;
+    this.writeTimeoutMillis = writeTimeoutMillis;
+    this.writers = new ThreadPoolExecutor(writerThreads, writerThreads, 60,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        newThreadFactory("IssueEvents-Writer"));
+    this.timer = Executors
+        .newSingleThreadScheduledExecutor(newThreadFactory("IssueEvents"));
+    timer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        keepAlive();
+      }
+    }, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts an event stream for the given request. The client immediately gets
+   * the current issue, unless it already saw it according to its
+   * Last-Event-ID. The response stays open after this returns.
+   */
+  public void subscribe(Request req, Response resp) throws IOException {
+    boolean admitted;
+    synchronized (clients) {
+      // Clients being set up count as well, or a burst of reconnects would get
+      // far more than the maximum through.
+      admitted = clients.size() + pending < maxClients;
+      if (admitted) {
+        ++pending;
+      }
+    }
+    if (!admitted) {
+      resp.setCode(503);
+      resp.setText("Service Unavailable");
+      resp.set("Retry-After", "60");
+      resp.close();
+      return;
+    }
+
+    Client client = null;
+    try {
+      resp.set("Content-Type", "text/event-stream; charset=UTF-8");
+      resp.set("Cache-Control", "no-cache");
+      resp.set("Server", ResponseCache.SERVER_HEADER);
+      resp.setDate("Date", System.currentTimeMillis());
+      client = new Client(resp, resp.getOutputStream());
+      client.lastEventId = req.getValue("Last-Event-ID");
+    } finally {
+      synchronized (clients) {
+        --pending;
+        if (client != null) {
+          clients.add(client);
+          Counters.set("events.clients", clients.size());
+          // Queued while holding the lock, so it comes before any event
+          // published from now on.
+          enqueue(client, getGreeting(client), null);
+        }
+      }
+    }
+  }
+
+  /**
+   * Announces the given issue to all clients, unless it was the last one
+   * announced. A corrected edition of that issue is announced again.
+   */
+  public void publish(IssueManifest.Entry entry) {
+    List<Client> dropped;
+    synchronized (clients) {
+      if (latest != null && getEventId(latest).equals(getEventId(entry))) {
+        return;
+      }
+      latest = entry;
+      dropped = enqueueAll(format(entry), getEventId(entry));
+    }
+    log.info("Announcing issue " + entry.issueId);
+    Counters.increment("events.published");
+    dropAll(dropped);
+  }
+
+  /**
+   * Sends a comment to all clients to keep their connections alive and drops
+   * those that stopped reading.
+   */
+  private void keepAlive() {
+    List<Client> dropped;
+    long now = System.currentTimeMillis();
+    synchronized (clients) {
+      dropped = enqueueAll(": keep-alive\n\n", null);
+      for (Client client : clients) {
+        if (markStalled(client, now)) {
+          dropped.add(client);
+        }
+      }
+    }
+    dropAll(dropped);
+  }
+
+  /** Must be called holding the lock on 'clients'. */
+  private String getGreeting(Client client) {
+    StringBuilder greeting = new StringBuilder("retry: 10000\n\n");
+    if (latest != null && !getEventId(latest).equals(client.lastEventId)) {
+      greeting.append(format(latest));
+      client.lastEventId = getEventId(latest);
+    }
+    return greeting.toString();
+  }
+
+  /**
+   * Queues the given text for all clients, see {@link #enqueue}. Returns the
+   * clients that have to be dropped. Must be called holding the lock on
+   * 'clients'.
+   */
+  private List<Client> enqueueAll(String text, String eventId) {
+    List<Client> dropped = new ArrayList<Client>();
+    for (Client client : clients) {
+      if (!enqueue(client, text, eventId)) {
+        dropped.add(client);
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * Queues the given text for the given client, unless it already got the
+   * event of the given ID, if any, with its greeting. Returns false if the
+   * client fell too far behind and has to be dropped.
+   */
+  private boolean enqueue(final Client client, String text, String eventId) {
+    synchronized (client) {
+      if (client.closed || client.queue.size() >= maxQueued) {
+        return false;
+      }
+      if (eventId != null) {
+        if (eventId.equals(client.lastEventId)) {
+          return true;
+        }
+        client.lastEventId = eventId;
+      }
+      client.queue.add(text);
+      if (client.writing) {
+        return true;
+      }
+      client.writing = true;
+    }
+    writers.execute(new Runnable() {
+      @Override
+      public void run() {
+        drain(client);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Writes what is queued for the given client until its queue is empty. Once
+   * the client was dropped, closes its response instead.
+   */
+  private void drain(Client client) {
+    while (true) {
+      StringBuilder text = new StringBuilder();
+      boolean close;
+      synchronized (client) {
+        close = client.closed;
+        while (!close && !client.queue.isEmpty()) {
+          text.append(client.queue.removeFirst());
+        }
+        if (!close && text.length() == 0) {
+          client.writing = false;
+          return;
+        }
+        client.writeStartedAt = System.currentTimeMillis();
+      }
+      boolean written = close ? close(client) : write(client, text.toString());
+      synchronized (client) {
+        client.writeStartedAt = 0;
+        if (client.stalled) {
+          // The thread that took over is not needed anymore.
+          client.stalled = false;
+          resizeWriters(-1);
+        }
+      }
+      if (close) {
+        synchronized (clients) {
+          clients.remove(client);
+          Counters.set("events.clients", clients.size());
+        }
+        // Still marked as writing, so nothing is scheduled for it anymore.
+        return;
+      }
+      if (!written) {
+        drop(client);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the current write to the given client takes too long. If
+   * so, another writer thread takes over for the one blocked by it.
+   */
+  private boolean markStalled(Client client, long now) {
+    synchronized (client) {
+      if (client.stalled || client.writeStartedAt == 0
+          || now - client.writeStartedAt < writeTimeoutMillis) {
+        return false;
+      }
+      client.stalled = true;
+      resizeWriters(1);
+    }
+    Counters.increment("events.stalled");
+    return true;
+  }
+
+  private void resizeWriters(int delta) {
+    synchronized (writers) {
+      int size = writers.getCorePoolSize() + delta;
+      // The maximum must never be below the core size.
+      if (delta > 0) {
+        writers.setMaximumPoolSize(size);
+        writers.setCorePoolSize(size);
+      } else {
+        writers.setCorePoolSize(size);
+        writers.setMaximumPoolSize(size);
+      }
+    }
+  }
+
+  private void dropAll(List<Client> dropped) {
+    for (Client client : dropped) {
+      drop(client);
+    }
+  }
+
+  /**
+   * Drops the given client: nothing is written to it anymore, and a writer
+   * thread closes its response and removes it.
+   */
+  private void drop(final Client client) {
+    synchronized (client) {
+      if (client.closed) {
+        return;
+      }
+      client.closed = true;
+      client.queue.clear();
+      Counters.increment("events.dropped");
+      if (client.writing) {
+        // The running writer closes it once its write returned.
+        return;
+      }
+      client.writing = true;
+    }
+    writers.execute(new Runnable() {
+      @Override
+      public void run() {
+        drain(client);
+      }
+    });
+  }
+
+  /**
+   * Closes the response of the given client. Returns false if that failed.
+   */
+  private static boolean close(Client client) {
+    try {
+      client.response.close();
+      return true;
+    } catch (IOException ex) {
+      // The client is gone anyway.
+      return false;
+    }
+  }
+
+  /**
+   * Writes to the given client. Returns false if the client went away.
+   */
+  private static boolean write(Client client, String text) {
+    try {
+      client.output.write(text.getBytes(ENCODING));
+      client.output.flush();
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the ID of the event announcing the given issue. It includes the
+   * hash, so that a corrected edition of an issue is a new event.
+   */
+  private static String getEventId(IssueManifest.Entry entry) {
+    return entry.issueId + "." + entry.hash;
+  }
+
+  private static String format(IssueManifest.Entry entry) {
+    return "event: issue\nid: " + getEventId(entry) + "\ndata: {\"id\":\""
+        + entry.issueId + "\",\"date\":\"" + entry.date + "\",\"size\":"
+        + entry.size + ",\"sha1\":\"" + entry.hash + "\"}\n\n";
+  }
+
+  private static ThreadFactory newThreadFactory(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
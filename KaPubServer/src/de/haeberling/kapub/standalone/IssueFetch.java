@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * A non-blocking fetch of an issue, see
+ * {@link KaPubTools#getLatestIssueAsync}.
+ * <p>
+ * The fetch runs as a chain of phases on a caller-supplied executor. Each phase
+ * can have its own timeout. When a phase times out or the fetch is cancelled,
+ * the HTTP request of the running phase is aborted and no further phases are
+ * started.
+ */
+public class IssueFetch implements Future<Issue> {
+  private static final Logger log = Logger.getLogger(IssueFetch.class
+      .getName());
+
+  /** The phases of fetching an issue. */
+  public enum Phase {
+    /** Loading the cached session or logging in. */
+    SESSION,
+    /** Scraping the overview page for the PDF link. */
+    OVERVIEW
+  }
+
+  /** Per-phase timeouts in milliseconds. Zero means no timeout. */
+  public static class Timeouts {
+    public static final Timeouts NONE = new Timeouts(0, 0);
+
+    public final long sessionMillis;
+    public final long overviewMillis;
+
+    public Timeouts(long sessionMillis, long overviewMillis) {
+      this.sessionMillis = sessionMillis;
+      this.overviewMillis = overviewMillis;
+    }
+
+    long get(Phase phase) {
+      return phase == Phase.SESSION ? sessionMillis : overviewMillis;
+    }
+  }
+
+  /** Gets notified once the fetch completed, failed or was cancelled. */
+  public interface Listener {
+    public void onIssue(Issue issue);
+
+    public void onFailure(Throwable error);
+  }
+
+  /** The work of a single phase. Starts the next phase or completes. */
+  interface PhaseTask {
+    public void run() throws Exception;
+  }
+
+  /** Shared timer thread used to enforce the phase timeouts. */
+  private static ScheduledExecutorService timer;
+
+  private final Executor executor;
+  private final Timeouts timeouts;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final List<Listener> listeners = new ArrayList<Listener>();
+
+  // All guarded by 'this'.
+  private boolean finished = false;
+  private boolean cancelled = false;
+  private Issue issue;
+  private Throwable error;
+  private Phase phase;
+  private Thread phaseThread;
+  private HttpUriRequest currentRequest;
+  private Future<?> phaseTimeout;
+
+  IssueFetch(Executor executor, Timeouts timeouts) {
+    this.executor = executor;
+    this.timeouts = timeouts;
+  }
+
+  /**
+   * Adds a listener which is called once the fetch is done. If it is done
+   * already, the listener is called right away on the calling thread.
+   */
+  public void addListener(Listener listener) {
+    synchronized (this) {
+      if (!finished) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    notifyListener(listener);
+  }
+
+  /**
+   * Returns the phase that is currently running or ran last.
+   */
+  public synchronized Phase getPhase() {
+    return phase;
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (finished) {
+        return false;
+      }
+      cancelled = true;
+      if (mayInterruptIfRunning && phaseThread != null) {
+        phaseThread.interrupt();
+      }
+    }
+    finish(null, new CancellationException("Issue fetch cancelled."));
+    return true;
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return finished;
+  }
+
+  @Override
+  public Issue get() throws InterruptedException, ExecutionException {
+    done.await();
+    return getResult();
+  }
+
+  @Override
+  public Issue get(long timeout, TimeUnit unit) throws InterruptedException,
+      ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException("Issue fetch did not complete in time.");
+    }
+    return getResult();
+  }
+
+  /**
+   * Runs the given phase on the executor, enforcing its timeout.
+   */
+  void runPhase(final Phase nextPhase, final PhaseTask task) {
+    synchronized (this) {
+      if (finished) {
+        return;
+      }
+      phase = nextPhase;
+      if (phaseTimeout != null) {
+        phaseTimeout.cancel(false);
+        phaseTimeout = null;
+      }
+      long timeoutMillis = timeouts.get(nextPhase);
+      if (timeoutMillis > 0) {
+        phaseTimeout = getTimer().schedule(new Runnable() {
+          @Override
+          public void run() {
+            log.warning("Phase " + nextPhase + " timed out.");
+            finish(null, new TimeoutException("Phase " + nextPhase
+                + " timed out."));
+          }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (IssueFetch.this) {
+          if (finished) {
+            return;
+          }
+          phaseThread = Thread.currentThread();
+        }
+        try {
+          task.run();
+        } catch (Throwable t) {
+          finish(null, t);
+        } finally {
+          // The next phase might already be running on another thread.
+          synchronized (IssueFetch.this) {
+            if (phaseThread == Thread.currentThread()) {
+              phaseThread = null;
+              currentRequest = null;
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Registers the HTTP request the current phase is executing, so that it can
+   * be aborted on timeout or cancellation.
+   */
+  void track(HttpUriRequest request) {
+    boolean abort;
+    synchronized (this) {
+      currentRequest = request;
+      abort = finished;
+    }
+    if (abort) {
+      request.abort();
+    }
+  }
+
+  /**
+   * Completes the fetch with the given issue.
+   */
+  void complete(Issue result) {
+    finish(result, null);
+  }
+
+  private void finish(Issue result, Throwable failure) {
+    List<Listener> toNotify;
+    HttpUriRequest toAbort;
+    synchronized (this) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      issue = result;
+      error = failure;
+      toAbort = failure != null ? currentRequest : null;
+      if (phaseTimeout != null) {
+        phaseTimeout.cancel(false);
+      }
+      toNotify = new ArrayList<Listener>(listeners);
+      listeners.clear();
+    }
+    if (toAbort != null) {
+      toAbort.abort();
+    }
+    done.countDown();
+    for (Listener listener : toNotify) {
+      notifyListener(listener);
+    }
+  }
+
+  private void notifyListener(Listener listener) {
+    Issue result;
+    Throwable failure;
+    synchronized (this) {
+      result = issue;
+      failure = error;
+    }
+    if (failure == null) {
+      listener.onIssue(result);
+    } else {
+      listener.onFailure(failure);
+    }
+  }
+
+  private synchronized Issue getResult() throws ExecutionException {
+    if (cancelled) {
+      throw new CancellationException("Issue fetch cancelled.");
+    }
+    if (error != null) {
+      throw new ExecutionException(error);
+    }
+    return issue;
+  }
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "IssueFetch-Timer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+}
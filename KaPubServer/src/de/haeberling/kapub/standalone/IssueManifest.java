@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compact list of the issues a mirror has available.
+ * <p>
+ * The manifest is serialized as plain text, one issue per line:
+ * <code>issueId date size hash</code>. This keeps it small enough to be polled
+ * by every device on the LAN.
+ */
+public class IssueManifest {
+  /** Describes a single issue within the manifest. */
+  public static class Entry {
+    /** The issue ID, as returned by {@link Issue#getFileName()}. */
+    public final String issueId;
+    /**
+     * The date the issue was published, formatted as yyyy-MM-dd. For the
+     * latest issue this is the date it was fetched.
+     */
+    public final String date;
+    /** The size of the PDF in bytes. */
+    public final long size;
+    /** The hex encoded SHA-1 hash of the PDF. */
+    public final String hash;
+
+    public Entry(String issueId, String date, long size, String hash) {
+      this.issueId = issueId;
+      this.date = date;
+      this.size = size;
+      this.hash = hash;
+    }
+
+    @Override
+    public String toString() {
+      return issueId + " " + date + " " + size + " " + hash;
+    }
+  }
+
+  private final List<Entry> entries;
+
+  public IssueManifest(List<Entry> entries) {
+    this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+  }
+
+  /**
+   * Parses a manifest in the format produced by {@link #serialize()}. Lines
+   * that cannot be parsed are skipped.
+   */
+  public static IssueManifest parse(String text) {
+    List<Entry> entries = new ArrayList<Entry>();
+    for (String line : text.split("\n")) {
+      String[] parts = line.trim().split(" ");
+      if (parts.length != 4) {
+        continue;
+      }
+      try {
+        entries.add(new Entry(parts[0], parts[1], Long.parseLong(parts[2]),
+            parts[3]));
+      } catch (NumberFormatException ex) {
+        // Skip malformed line.
+      }
+    }
+    return new IssueManifest(entries);
+  }
+
+  /**
+   * Returns the manifest in its textual form.
+   */
+  public String serialize() {
+    StringBuilder text = new StringBuilder();
+    for (Entry entry : entries) {
+      text.append(entry.toString()).append('\n');
+    }
+    return text.toString();
+  }
+
+  /**
+   * Returns all entries, oldest first.
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Returns the entry for the given issue ID or <code>null</code> if the
+   * manifest does not contain it.
+   */
+  public Entry getEntry(String issueId) {
+    for (Entry entry : entries) {
+      if (entry.issueId.equals(issueId)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the most recently added entry for the given date or
+   * <code>null</code> if the manifest does not contain any.
+   */
+  public Entry getEntryForDate(String date) {
+    Entry found = null;
+    for (Entry entry : entries) {
+      if (entry.date.equals(date)) {
+        found = entry;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Returns the entry with the latest date or <code>null</code> if the
+   * manifest is empty. Of several entries with that date, the most recently
+   * added one is returned. Backfilled issues are added after newer ones, so
+   * the order of the entries alone is not enough.
+   */
+  public Entry getLatest() {
+    Entry latest = null;
+    for (Entry entry : entries) {
+      if (latest == null || entry.date.compareTo(latest.date) >= 0) {
+        latest = entry;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Returns a new manifest with the given entry added to the end. An existing
+   * entry with the same issue ID is replaced.
+   */
+  public IssueManifest with(Entry entry) {
+    List<Entry> newEntries = new ArrayList<Entry>(entries.size() + 1);
+    for (Entry existing : entries) {
+      if (!existing.issueId.equals(entry.issueId)) {
+        newEntries.add(existing);
+      }
+    }
+    newEntries.add(entry);
+    return new IssueManifest(newEntries);
+  }
+
+  /**
+   * Returns a new manifest without the entry of the given issue ID.
+   */
+  public IssueManifest without(String issueId) {
+    List<Entry> newEntries = new ArrayList<Entry>(entries.size());
+    for (Entry existing : entries) {
+      if (!existing.issueId.equals(issueId)) {
+        newEntries.add(existing);
+      }
+    }
+    return new IssueManifest(newEntries);
+  }
+
+  /**
+   * Returns the entries of issues that are not in the given set of locally
+   * available issue IDs. This is all a client needs to sync with a mirror.
+   */
+  public List<Entry> getMissing(Set<String> localIssueIds) {
+    List<Entry> missing = new ArrayList<Entry>();
+    for (Entry entry : entries) {
+      if (!localIssueIds.contains(entry.issueId)) {
+        missing.add(entry);
+      }
+    }
+    return missing;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Something issues can be fetched from, e.g. the publisher or a local mirror.
+ */
+public interface IssueSource {
+  /**
+   * Returns the latest issue or <code>null</code> if it could not be
+   * determined. Gives up once the deadline expires.
+   */
+  public Issue getLatestIssue(File cacheDirectory, Deadline deadline)
+      throws IOException;
+}
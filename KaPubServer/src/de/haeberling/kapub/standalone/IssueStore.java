@@ -0,0 +1,485 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import de.haeberling.kapub.standalone.Issue.Data;
+import de.haeberling.kapub.standalone.Issue.DataProvider;
+
+/**
+ * Stores downloaded issues on disk together with a manifest describing them.
+ * <p>
+ * This way every issue is downloaded from the publisher only once and can then
+ * be served to any number of clients, including other mirrors. Every issue
+ * that enters the store is also transcoded into a lite edition with smaller
+ * images for readers on slow connections.
+ */
+public class IssueStore {
+  private static final Logger log = Logger.getLogger(IssueStore.class
+      .getName());
+  private static final String MANIFEST_FILE = "manifest";
+  private static final String MANIFEST_LOCK_FILE = "manifest.lock";
+  private static final String LATEST_FILE = "latest";
+  private static final String ISSUE_SUFFIX = ".pdf";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String SIGNATURE_SUFFIX = ".sig";
+  private static final String LITE_SUFFIX = ".lite.pdf";
+
+  private final File directory;
+  // Held while the manifest is read and updated, so that nodes sharing the
+  // directory don't overwrite each other's updates. Taken before 'this'.
+  private final SharedLock manifestLock;
+  private IssueManifest manifest;
+  private final LiteTranscoder liteTranscoder = new LiteTranscoder(
+      Config.LITE_MAX_IMAGE_SIZE, Config.LITE_JPEG_QUALITY);
+  // Transcoding is CPU bound, so one issue at a time.
+  private final ExecutorService liteExecutor = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "LiteTranscoder");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+  // Guarded by 'this'. The issues whose lite edition was queued since start.
+  private final Set<String> liteQueued = new HashSet<String>();
+
+  /**
+   * Returns a usable IssueStore for the given directory or <code>null</code>
+   * if it could not be created.
+   */
+  public static IssueStore open(File directory) {
+    if (!directory.exists() && !directory.mkdirs()) {
+      log.severe("Could not create issue directory.");
+      return null;
+    }
+    if (!directory.canWrite()) {
+      log.severe("Cannot write to issue directory.");
+      return null;
+    }
+    IssueStore store = new IssueStore(directory);
+    store.manifest = store.loadManifest();
+    return store;
+  }
+
+  private IssueStore(File directory) {
+    this.directory = directory;
+    this.manifestLock = new SharedLock(new File(directory, MANIFEST_LOCK_FILE));
+  }
+
+  /**
+   * Returns the manifest of all issues available in this store.
+   */
+  public synchronized IssueManifest getManifest() {
+    return manifest;
+  }
+
+  /**
+   * Returns whether the issue with the given ID is available locally.
+   */
+  public synchronized boolean contains(String issueId) {
+    return manifest.getEntry(issueId) != null && getFile(issueId).exists();
+  }
+
+  /**
+   * Returns the file in which the issue with the given ID is stored.
+   */
+  public File getFile(String issueId) {
+    return new File(directory, issueId + ISSUE_SUFFIX);
+  }
+
+  /**
+   * Returns the block signature of the stored issue with the given ID or
+   * <code>null</code> if the issue is not available locally. Signatures are
+   * kept next to the issues; one that is missing is computed again.
+   */
+  public BlockSignature getSignature(String issueId) throws IOException {
+    if (!contains(issueId)) {
+      return null;
+    }
+    File file = new File(directory, issueId + SIGNATURE_SUFFIX);
+    if (file.exists()) {
+      try {
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+          BlockSignature signature = BlockSignature.read(input);
+          if (signature.getBlockSize() == Config.DELTA_BLOCK_SIZE
+              && signature.getLength() == getFile(issueId).length()) {
+            return signature;
+          }
+        } finally {
+          input.close();
+        }
+      } catch (IOException ex) {
+        log.warning("Could not read signature: " + ex.getMessage());
+      }
+    }
+    return saveSignature(issueId);
+  }
+
+  /**
+   * Returns the file of the lite edition of the stored issue with the given
+   * ID, or <code>null</code> if there is none. Issues that were stored before
+   * there were lite editions are queued for transcoding.
+   */
+  public File getLiteFile(String issueId) {
+    File file = new File(directory, issueId + LITE_SUFFIX);
+    if (file.exists()) {
+      return file;
+    }
+    if (contains(issueId)) {
+      queueLite(issueId);
+    }
+    return null;
+  }
+
+  /**
+   * Returns an issue whose data is read from this store or <code>null</code>
+   * if the issue is not available locally.
+   */
+  public Issue getIssue(String issueId) {
+    if (!contains(issueId)) {
+      return null;
+    }
+    final File file = getFile(issueId);
+    final IssueManifest.Entry entry = getManifest().getEntry(issueId);
+    Issue issue = new Issue(issueId);
+    issue.setDataProvider(new DataProvider() {
+      @Override
+      public Data getData() {
+        try {
+          return new Data(new FileInputStream(file), file.length(), entry.hash);
+        } catch (FileNotFoundException ex) {
+          log.severe("Stored issue vanished: " + file);
+          return null;
+        }
+      }
+    });
+    return issue;
+  }
+
+  /**
+   * Returns the stored issue published on the given date, or
+   * <code>null</code> if there is none.
+   */
+  public synchronized Issue getIssueForDate(String date) {
+    IssueManifest.Entry entry = manifest.getEntryForDate(date);
+    return entry != null ? getIssue(entry.issueId) : null;
+  }
+
+  /**
+   * Makes sure the given issue, published today, is available in this store.
+   * See {@link #store(Issue, String)}.
+   * <p>
+   * The publisher sometimes replaces the day's edition with a corrected one
+   * under the same link, and thus the same issue ID. So if the issue is stored
+   * already, its length upstream is compared with the stored one, and a
+   * different length replaces the stored issue.
+   */
+  public Issue store(Issue issue) throws IOException {
+    return store(issue, IssueDates.today(), true);
+  }
+
+  /**
+   * Makes sure the given issue is available in this store, downloading it if
+   * necessary, and returns an issue that is served from the store. Several
+   * issues can be downloaded at the same time.
+   */
+  public Issue store(Issue issue, String date) throws IOException {
+    return store(issue, date, false);
+  }
+
+  private Issue store(Issue issue, String date, boolean checkForCorrection)
+      throws IOException {
+    String issueId = issue.getFileName();
+    IssueManifest.Entry stored;
+    // Another node sharing the directory might have added issues.
+    reloadManifest();
+    synchronized (this) {
+      stored = contains(issueId) ? manifest.getEntry(issueId) : null;
+      if (stored != null && !checkForCorrection) {
+        return getIssue(issueId);
+      }
+    }
+
+    if (stored != null) {
+      // Only asks for the length, the data is fetched if it changed.
+      long length;
+      try {
+        length = issue.getLength();
+      } catch (IOException ex) {
+        log.warning("Could not check issue for corrections: "
+            + ex.getMessage());
+        length = -1;
+      }
+      if (length < 0 || length == stored.size) {
+        return getIssue(issueId);
+      }
+      log.info("Issue " + issueId + " was corrected upstream: " + stored.size
+          + " bytes before, " + length + " now.");
+      Counters.increment("store.corrections");
+      date = stored.date;
+    }
+    Data data = issue.getData();
+    if (data == null) {
+      if (stored != null) {
+        return getIssue(issueId);
+      }
+      throw new IOException("Could not get data for issue " + issueId);
+    }
+    log.info("Storing issue " + issueId);
+
+    // Download into a temporary file first, so that a failed download never
+    // ends up looking like a complete issue. The stream is verified against the
+    // expected length and hash while it is copied, so a truncated or corrupted
+    // transfer fails like a broken connection.
+    File tempFile = File.createTempFile(issueId + ISSUE_SUFFIX, TEMP_SUFFIX,
+        directory);
+    PhaseEvent event = PhaseEvent.begin("download").set("issue", issueId)
+        .set("succeeded", false);
+    VerifyingInputStream input = new VerifyingInputStream(data);
+    boolean complete = false;
+    try {
+      OutputStream output = new FileOutputStream(tempFile);
+      try {
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = input.read(buffer)) != -1) {
+          output.write(buffer, 0, length);
+        }
+      } finally {
+        output.close();
+      }
+      complete = true;
+      event.set("succeeded", true);
+    } finally {
+      input.close();
+      event.addBytes(input.getLength()).commit();
+      if (!complete) {
+        tempFile.delete();
+      }
+    }
+
+    SharedLock.Lease lease = null;
+    try {
+      lease = manifestLock.acquire(Config.MANIFEST_LOCK_TIMEOUT_MILLIS);
+      synchronized (this) {
+        File file = getFile(issueId);
+        // Someone else might have stored the issue while we downloaded it.
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+          throw new IOException("Could not move issue into place: " + file);
+        }
+        // The lite edition of a corrected issue is outdated.
+        new File(directory, issueId + LITE_SUFFIX).delete();
+        liteQueued.remove(issueId);
+        IssueManifest.Entry entry = new IssueManifest.Entry(issueId, date,
+            input.getLength(), input.getHash());
+        manifest = loadManifest().with(entry);
+        saveManifest();
+        log.info("Stored issue: " + entry);
+      }
+    } finally {
+      if (lease != null) {
+        lease.release();
+      }
+      // Only left if the issue could not be moved into place.
+      tempFile.delete();
+    }
+    saveSignature(issueId);
+    queueLite(issueId);
+    return getIssue(issueId);
+  }
+
+  private synchronized void queueLite(final String issueId) {
+    if (!liteQueued.add(issueId)) {
+      return;
+    }
+    liteExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        createLite(issueId);
+      }
+    });
+  }
+
+  /**
+   * Transcodes the stored issue with the given ID into its lite edition, which
+   * is kept next to the issue.
+   */
+  private void createLite(String issueId) {
+    File file = getFile(issueId);
+    File liteFile = new File(directory, issueId + LITE_SUFFIX);
+    long length = file.length();
+    PhaseEvent event = PhaseEvent.begin("lite").set("issue", issueId)
+        .set("succeeded", false);
+    try {
+      File tempFile = File.createTempFile(issueId + LITE_SUFFIX, TEMP_SUFFIX,
+          directory);
+      try {
+        if (!liteTranscoder.transcode(file, tempFile)) {
+          Counters.increment("lite.skipped");
+          return;
+        }
+        synchronized (this) {
+          // The issue might have been corrected while we transcoded it.
+          if (file.length() != length) {
+            return;
+          }
+          liteFile.delete();
+          if (!tempFile.renameTo(liteFile)) {
+            throw new IOException("Could not move lite edition into place: "
+                + liteFile);
+          }
+        }
+        event.set("succeeded", true).addBytes(liteFile.length());
+        Counters.increment("lite.created");
+        Counters.add("lite.bytes_saved", length - liteFile.length());
+        log.info("Stored lite edition of " + issueId + ": " + liteFile.length()
+            + " of " + length + " bytes.");
+      } finally {
+        tempFile.delete();
+      }
+    } catch (IOException ex) {
+      log.warning("Could not create lite edition of " + issueId + ": "
+          + ex.getMessage());
+    } catch (RuntimeException ex) {
+      // A PDF we misread must not take the transcoder down.
+      log.warning("Could not create lite edition of " + issueId + ": " + ex);
+    } finally {
+      event.commit();
+    }
+  }
+
+  /**
+   * Computes the signature of the stored issue with the given ID and keeps it
+   * next to the issue.
+   */
+  private BlockSignature saveSignature(String issueId) throws IOException {
+    BlockSignature signature = BlockSignature.compute(getFile(issueId),
+        Config.DELTA_BLOCK_SIZE);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    signature.write(bytes);
+    AtomicFiles.write(new File(directory, issueId + SIGNATURE_SUFFIX),
+        bytes.toByteArray());
+    return signature;
+  }
+
+  /**
+   * Records that the issue with the given ID was just looked up as the latest
+   * one, so that other nodes sharing the directory can use it.
+   */
+  public void publishLatest(String issueId) throws IOException {
+    AtomicFiles.write(new File(directory, LATEST_FILE),
+        issueId.getBytes("UTF-8"));
+  }
+
+  /**
+   * Returns the issue published as the latest one, or <code>null</code> if
+   * there is none or it was published longer ago than the given time.
+   */
+  public Issue getPublishedLatest(long maxAgeMillis) {
+    File file = new File(directory, LATEST_FILE);
+    if (System.currentTimeMillis() - file.lastModified() > maxAgeMillis) {
+      return null;
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(file), "UTF-8"));
+      String issueId;
+      try {
+        issueId = reader.readLine();
+      } finally {
+        reader.close();
+      }
+      if (issueId == null) {
+        return null;
+      }
+      reloadManifest();
+      return getIssue(issueId.trim());
+    } catch (IOException ex) {
+      log.warning("Could not read latest issue: " + ex.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Reloads the manifest, which another node sharing the directory might have
+   * updated.
+   */
+  private void reloadManifest() throws IOException {
+    SharedLock.Lease lease = manifestLock
+        .acquire(Config.MANIFEST_LOCK_TIMEOUT_MILLIS);
+    try {
+      synchronized (this) {
+        manifest = loadManifest();
+      }
+    } finally {
+      lease.release();
+    }
+  }
+
+  private IssueManifest loadManifest() {
+    File file = new File(directory, MANIFEST_FILE);
+    if (!file.exists()) {
+      return new IssueManifest(new ArrayList<IssueManifest.Entry>());
+    }
+    try {
+      InputStreamReader reader = new InputStreamReader(new FileInputStream(
+          file), "UTF-8");
+      try {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[1024];
+        int num;
+        while ((num = reader.read(buffer)) != -1) {
+          content.append(buffer, 0, num);
+        }
+        return IssueManifest.parse(content.toString());
+      } finally {
+        reader.close();
+      }
+    } catch (IOException ex) {
+      log.severe("Could not read manifest: " + ex.getMessage());
+      return new IssueManifest(new ArrayList<IssueManifest.Entry>());
+    }
+  }
+
+  private void saveManifest() throws IOException {
+    AtomicFiles.write(new File(directory, MANIFEST_FILE), manifest.serialize()
+        .getBytes("UTF-8"));
+  }
+}
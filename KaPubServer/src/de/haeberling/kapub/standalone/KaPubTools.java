@@ -25,27 +25,85 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 
 import de.haeberling.kapub.standalone.Issue.Data;
 import de.haeberling.kapub.standalone.Issue.DataProvider;
+import de.haeberling.kapub.standalone.Issue.LengthProvider;
+import de.haeberling.kapub.standalone.IssueFetch.Phase;
+import de.haeberling.kapub.standalone.IssueFetch.PhaseTask;
+import de.haeberling.kapub.standalone.UpstreamGuard.Attempt;
+import de.haeberling.kapub.standalone.UpstreamGuard.AttemptFactory;
 
 /**
  * Contains methods to log-in and retrieve the latest PDF of the Kreis-Anzeiger
  * portal.
  */
-public class KaPubTools {
+public class KaPubTools implements IssueSource {
   private static final Logger log = Logger
       .getLogger(KaPubTools.class.getName());
 
+  /**
+   * An upstream attempt that keeps track of its HTTP requests so it can be
+   * aborted. Requests are also tracked by the fetch, if there is one, and
+   * aborted when the deadline expires.
+   */
+  private abstract static class RequestAttempt<T> implements Attempt<T> {
+    private final IssueFetch fetch;
+    private final Deadline deadline;
+    private volatile HttpUriRequest request;
+    private volatile Future<?> deadlineAbort;
+
+    RequestAttempt(IssueFetch fetch, Deadline deadline) {
+      this.fetch = fetch;
+      this.deadline = deadline;
+    }
+
+    /** Returns a client whose timeouts fit the deadline. */
+    DefaultHttpClient newHttpClient() {
+      return deadline.newHttpClient();
+    }
+
+    void track(HttpUriRequest newRequest) {
+      request = newRequest;
+      if (fetch != null) {
+        fetch.track(newRequest);
+      }
+      done();
+      deadlineAbort = deadline.abortOnExpiry(newRequest);
+    }
+
+    /** Called once the last request finished, it need not be aborted. */
+    void done() {
+      Future<?> currentAbort = deadlineAbort;
+      if (currentAbort != null) {
+        currentAbort.cancel(false);
+      }
+    }
+
+    @Override
+    public void abort() {
+      HttpUriRequest currentRequest = request;
+      if (currentRequest != null) {
+        currentRequest.abort();
+      }
+    }
+  }
+
   /** Required for logging in the user and fetching the newspaper. */
   private final LoginData loginData;
 
@@ -56,7 +114,9 @@ public class KaPubTools {
   /**
    * Returns the latest issue from the KA website.
    */
-  public Issue getLatestIssue(File cacheDirectory) throws IOException {
+  @Override
+  public Issue getLatestIssue(File cacheDirectory, Deadline deadline)
+      throws IOException {
 
     // Initialize the cookie store. We do cache cookies to avoid unnecessary
     // logins.
@@ -71,27 +131,160 @@ public class KaPubTools {
 
     // Get cookie data from actually logging in as we don't seem to have any
     // data on file.
+    PhaseEvent sessionEvent = PhaseEvent.begin("session");
     if (cookieData == null) {
-      cookieData = loginAndGetCookies(this.loginData, cookieStore);
+      cookieData = loginAndGetCookies(this.loginData, cookieStore, null,
+          deadline);
       cookieDataFromLogin = true;
     }
+    sessionEvent.set("reused", !cookieDataFromLogin).commit();
 
-    String pdfLink = getPdfLink(cookieData);
+    String pdfLink = getPdfLink(Config.MAIN_URL, cookieData, null, deadline);
 
     // If retrieving the link failed but the cookie data is old, it might be
     // that the session timed out. In this case we try to get fresh session
     // data.
     if (pdfLink == null && !cookieDataFromLogin) {
       log.info("Looks like the session might not be valid anymore. Logging in again.");
-      cookieData = loginAndGetCookies(this.loginData, cookieStore);
-      pdfLink = getPdfLink(cookieData);
+      cookieData = loginAndGetCookies(this.loginData, cookieStore, null,
+          deadline);
+      pdfLink = getPdfLink(Config.MAIN_URL, cookieData, null, deadline);
     }
 
     if (pdfLink == null) {
       log.severe("Could not extract pdf link.");
       return null;
     }
+    return createIssue(pdfLink, cookieData);
+  }
+
+  /**
+   * Returns the latest issue from the KA website without blocking the calling
+   * thread.
+   * <p>
+   * The session and overview phases run on the given executor, each bounded by
+   * its timeout from <code>timeouts</code>, and none of their requests
+   * outlives the deadline. The returned fetch can be cancelled, which aborts
+   * the running request. The data of the resulting issue is only requested
+   * once {@link Issue#getData()} is called.
+   */
+  public IssueFetch getLatestIssueAsync(final File cacheDirectory,
+      Executor executor, IssueFetch.Timeouts timeouts, final Deadline deadline) {
+    final IssueFetch fetch = new IssueFetch(executor, timeouts);
+    fetch.runPhase(Phase.SESSION, new PhaseTask() {
+      @Override
+      public void run() throws IOException {
+        final CookieStore cookieStore = CookieStore.get(cacheDirectory);
+        if (cookieStore == null) {
+          throw new IOException("Could not initialize cookie store.");
+        }
+        PhaseEvent sessionEvent = PhaseEvent.begin("session");
+        CookieData cachedCookieData = cookieStore.getCookiesFromFile();
+        final boolean cookieDataFromLogin = cachedCookieData == null;
+        final CookieData cookieData = cookieDataFromLogin ? loginAndGetCookies(
+            loginData, cookieStore, fetch, deadline) : cachedCookieData;
+        sessionEvent.set("reused", !cookieDataFromLogin).commit();
+
+        fetch.runPhase(Phase.OVERVIEW, new PhaseTask() {
+          @Override
+          public void run() throws IOException {
+            CookieData sessionCookieData = cookieData;
+            String pdfLink = getPdfLink(Config.MAIN_URL, sessionCookieData,
+                fetch, deadline);
+
+            // Same as for the blocking call, the cached session might have
+            // timed out.
+            if (pdfLink == null && !cookieDataFromLogin && !fetch.isDone()) {
+              log.info("Looks like the session might not be valid anymore. Logging in again.");
+              sessionCookieData = loginAndGetCookies(loginData, cookieStore,
+                  fetch, deadline);
+              pdfLink = getPdfLink(Config.MAIN_URL, sessionCookieData, fetch,
+                  deadline);
+            }
+            if (pdfLink == null) {
+              throw new IOException("Could not extract pdf link.");
+            }
+            fetch.complete(createIssue(pdfLink, sessionCookieData));
+          }
+        });
+      }
+    });
+    return fetch;
+  }
+
+  /**
+   * Returns the issue published on the given date, formatted as yyyy-MM-dd, or
+   * <code>null</code> if there is none, e.g. on Sundays. Safe to call from
+   * several threads at once, which then share one session. Gives up once the
+   * deadline expires.
+   *
+   * @throws IOException if the page of the date could not be loaded or was not
+   *           recognized, even after logging in again.
+   */
+  public Issue getIssueForDate(File cacheDirectory, String date,
+      Deadline deadline) throws IOException {
+    CookieStore cookieStore = CookieStore.get(cacheDirectory);
+    if (cookieStore == null) {
+      throw new IOException("Could not initialize cookie store.");
+    }
+    String upstreamDate = IssueDates.toUpstream(date);
+    String overviewUrl = String.format(Locale.US, Config.ISSUE_BY_DATE_URL,
+        upstreamDate);
+    CookieData cookieData = getSession(cookieStore, null, deadline);
+    String content = getOverview(overviewUrl, cookieData, null, deadline);
+    String pdfLink = content != null ? parsePdfLink(content) : null;
+    // Without a link, this might as well be a login or error page. Like for
+    // the latest issue, the session might have timed out.
+    if (pdfLink == null && !isArchivePage(content, upstreamDate)) {
+      log.info("Looks like the session might not be valid anymore. Logging in again.");
+      cookieData = getSession(cookieStore, cookieData, deadline);
+      content = getOverview(overviewUrl, cookieData, null, deadline);
+      if (content == null) {
+        throw new IOException("Session rejected for issue of " + date);
+      }
+      pdfLink = parsePdfLink(content);
+      if (pdfLink == null && !isArchivePage(content, upstreamDate)) {
+        throw new IOException("Not an archive page for the issue of " + date);
+      }
+    }
+    if (pdfLink == null) {
+      log.info("No issue published on " + date);
+      return null;
+    }
+    return createIssue(pdfLink, cookieData);
+  }
+
+  /**
+   * Returns whether the given overview page is the archive page of the given
+   * date, in {@link Config#ISSUE_BY_DATE_FORMAT}. Only then does a missing PDF
+   * link mean that no issue was published.
+   */
+  private static boolean isArchivePage(String content, String upstreamDate) {
+    return content != null && content.contains(upstreamDate);
+  }
+
+  /**
+   * Returns the stored session, logging in if there is none or if it is the
+   * given expired one. Another thread might already have replaced it.
+   */
+  private CookieData getSession(CookieStore cookieStore, CookieData expired,
+      Deadline deadline) throws IOException {
+    // Only lookups of the same account wait for each other.
+    synchronized (cookieStore) {
+      CookieData cookieData = cookieStore.getCookiesFromFile();
+      if (cookieData == null
+          || (expired != null && expired.cmsSessionId
+              .equals(cookieData.cmsSessionId))) {
+        cookieData = loginAndGetCookies(loginData, cookieStore, null, deadline);
+      }
+      return cookieData;
+    }
+  }
 
+  /**
+   * Creates the issue for the given PDF link.
+   */
+  private static Issue createIssue(String pdfLink, CookieData cookieData) {
     // We hash the URL to create a unique filename for the PDF and to avoid
     // re-downloading the same issue repeatedly, even though we already have it
     // on the device.
@@ -124,28 +317,75 @@ public class KaPubTools {
   /**
    * Phase 1: We make a POST request to log-in to the site.
    *
-   * The cookie will be written to the given cookie store as well.
+   * The cookie will be written to the given cookie store as well. If a fetch
+   * is given, its requests are tracked so they can be aborted. Transient
+   * failures are retried by {@link UpstreamGuard#LOGIN}.
    */
-  private static CookieData loginAndGetCookies(LoginData loginData,
-      CookieStore cookieStore) throws IOException {
+  private static CookieData loginAndGetCookies(final LoginData loginData,
+      final CookieStore cookieStore, final IssueFetch fetch,
+      final Deadline deadline) throws IOException {
+    return UpstreamGuard.LOGIN.call(new AttemptFactory<CookieData>() {
+      @Override
+      public Attempt<CookieData> create() {
+        return new RequestAttempt<CookieData>(fetch, deadline) {
+          @Override
+          public CookieData execute() throws IOException {
+            return login(loginData, cookieStore, this);
+          }
+        };
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return fetch != null && fetch.isDone();
+      }
+    }, deadline);
+  }
+
+  /**
+   * A single login attempt, see {@link #loginAndGetCookies}.
+   */
+  private static CookieData login(LoginData loginData,
+      CookieStore cookieStore, RequestAttempt<?> attempt) throws IOException {
+    PhaseEvent event = PhaseEvent.begin("login").set("succeeded", false);
+    try {
+      CookieData cookieData = doLogin(loginData, cookieStore, attempt, event);
+      event.set("succeeded", true);
+      return cookieData;
+    } finally {
+      attempt.done();
+      event.commit();
+    }
+  }
+
+  private static CookieData doLogin(LoginData loginData,
+      CookieStore cookieStore, RequestAttempt<?> attempt, PhaseEvent event)
+      throws IOException {
     // First we contacts the login page in order to get a new session ID cookie.
     // We get a new one without providing a username or password.
     HttpGet get = new HttpGet(Config.LOGIN_URL);
-    DefaultHttpClient client = new DefaultHttpClient();
-    HttpResponse response = client.execute(get);
-
+    attempt.track(get);
+    DefaultHttpClient client = attempt.newHttpClient();
     String cmsSessionId = null;
-    log.info(response.getStatusLine().toString() + "\n");
-    for (Header header : response.getAllHeaders()) {
-      log.info(header.getName() + " : " + header.getValue() + "\n");
-      if (header.getName().toLowerCase().equals("set-cookie")) {
-        String cookieString = header.getValue();
-        int start = cookieString.indexOf("CMS_SESSION_ID=");
-        if (start >= 0) {
-          cmsSessionId = cookieString.substring(start,
-              cookieString.indexOf("; ", start));
+    try {
+      HttpResponse response = client.execute(get);
+      event.set("session_ms", event.getElapsedMillis());
+
+      log.info(response.getStatusLine().toString() + "\n");
+      for (Header header : response.getAllHeaders()) {
+        log.info(header.getName() + " : " + header.getValue() + "\n");
+        if (header.getName().toLowerCase().equals("set-cookie")) {
+          String cookieString = header.getValue();
+          int start = cookieString.indexOf("CMS_SESSION_ID=");
+          if (start >= 0) {
+            cmsSessionId = cookieString.substring(start,
+                cookieString.indexOf("; ", start));
+          }
         }
       }
+      consume(response);
+    } finally {
+      client.getConnectionManager().shutdown();
     }
 
     if (cmsSessionId == null) {
@@ -161,15 +401,21 @@ public class KaPubTools {
     // Now that we have a session ID, we need to login. Logging in means
     // providing our fresh session ID together with the username and password.
     HttpPost post = getPostRequestForLogin(loginData, cookieData);
-    client = new DefaultHttpClient();
-    response = client.execute(post);
-
-    // If the login succeeds, the returned status code is a redirect to the
-    // overview page.
-    if (response.getStatusLine().getStatusCode() != 302
-        && response.getStatusLine().getStatusCode() != 200) {
-      throw new IOException("Login failed. Wrong status code: "
-          + response.getStatusLine().getStatusCode());
+    attempt.track(post);
+    client = attempt.newHttpClient();
+    try {
+      HttpResponse response = client.execute(post);
+      consume(response);
+
+      // If the login succeeds, the returned status code is a redirect to the
+      // overview page.
+      if (response.getStatusLine().getStatusCode() != 302
+          && response.getStatusLine().getStatusCode() != 200) {
+        throw new IOException("Login failed. Wrong status code: "
+            + response.getStatusLine().getStatusCode());
+      }
+    } finally {
+      client.getConnectionManager().shutdown();
     }
     log.info("Login in was successful!");
 
@@ -178,24 +424,88 @@ public class KaPubTools {
 
   /**
    * Phase 2: Makes a request to the nav site which contains the link to the
-   * PDF.
+   * PDF. If a fetch is given, the request is tracked so it can be aborted.
+   * Returns <code>null</code> only if the session is not valid anymore. Any
+   * other failure, including the guard giving up after retries or failing
+   * fast with an open circuit, is thrown, so that callers don't log in again
+   * while the publisher is down.
+   */
+  private static String getPdfLink(String overviewUrl, CookieData cookieData,
+      IssueFetch fetch, Deadline deadline) throws IOException {
+    String content = getOverview(overviewUrl, cookieData, fetch, deadline);
+    if (content == null) {
+      return null;
+    }
+
+    // Get the PDF link from the overview page.
+    return parsePdfLink(content);
+  }
+
+  /**
+   * Loads the given overview page. Returns <code>null</code> if the session is
+   * not valid anymore. Slow and failed requests are hedged and retried by
+   * {@link UpstreamGuard#OVERVIEW}.
    */
-  private static String getPdfLink(CookieData cookieData) throws IOException {
-    DefaultHttpClient client = new DefaultHttpClient();
-    HttpGet get = new HttpGet(Config.MAIN_URL);
+  private static String getOverview(final String overviewUrl,
+      final CookieData cookieData, final IssueFetch fetch,
+      final Deadline deadline) throws IOException {
+    return UpstreamGuard.OVERVIEW.call(new AttemptFactory<String>() {
+      @Override
+      public Attempt<String> create() {
+        return new RequestAttempt<String>(fetch, deadline) {
+          @Override
+          public String execute() throws IOException {
+            return getOverviewPage(overviewUrl, cookieData, this);
+          }
+        };
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return fetch != null && fetch.isDone();
+      }
+    }, deadline);
+  }
+
+  /**
+   * A single attempt to load an overview page, see {@link #getOverview}.
+   * Returns <code>null</code> if the session is not valid anymore, which is
+   * not worth retrying.
+   */
+  private static String getOverviewPage(String overviewUrl,
+      CookieData cookieData, RequestAttempt<?> attempt) throws IOException {
+    DefaultHttpClient client = attempt.newHttpClient();
+    HttpGet get = new HttpGet(overviewUrl);
     get.setHeader("Cookie", cookieData.toString());
+    attempt.track(get);
+    PhaseEvent event = PhaseEvent.begin("overview").set("outcome", "failed");
     try {
       HttpResponse response = client.execute(get);
+      event.set("first_byte_ms", event.getElapsedMillis());
       String content = readStringFromStream(response.getEntity().getContent());
-
-      // Get the PDF link from the overview page.
-      return parsePdfLink(content);
-    } catch (Exception ex) {
-      // Being defense, catching any kind of Exception.
+      event.addBytes(content.length()).set("outcome", "ok");
+      return content;
+    } catch (ClientProtocolException ex) {
       // A ProtocolException can be thrown if the session ran out and a redirect
       // 302 response is returned.
-      log.log(Level.WARNING, ex.getMessage(), ex);
+      log.info("Overview request rejected: " + ex.getMessage());
+      event.set("outcome", "session_expired");
       return null;
+    } finally {
+      // Also closes the connection if the page was not read completely.
+      client.getConnectionManager().shutdown();
+      attempt.done();
+      event.commit();
+    }
+  }
+
+  /**
+   * Reads the rest of the response body, so the connection can be freed.
+   */
+  private static void consume(HttpResponse response) throws IOException {
+    HttpEntity entity = response.getEntity();
+    if (entity != null && entity.isStreaming()) {
+      entity.getContent().close();
     }
   }
 
@@ -208,10 +518,18 @@ public class KaPubTools {
     DataProvider dataProvider = new DataProvider() {
       @Override
       public Data getData() {
+        // Only times the connection up to the response headers, the transfer
+        // itself is recorded by whoever reads the stream.
+        PhaseEvent event = PhaseEvent.begin("download_connect").set(
+            "succeeded", false);
+        HttpURLConnection urlConn = null;
         try {
           log.info("Getting data for URL: " + urlStr);
           URL url = new URL(urlStr);
-          HttpURLConnection urlConn = (HttpURLConnection) url.openConnection();
+          urlConn = (HttpURLConnection) url.openConnection();
+          // The download outlives the lookup that found the issue, so it is
+          // bounded by the read timeout between two reads, not by a deadline.
+          Deadline.NONE.apply(urlConn);
           if (cookieData != null) {
             urlConn.setRequestProperty("Cookie", cookieData.toString());
           }
@@ -220,29 +538,71 @@ public class KaPubTools {
 
           String contentLengthStr = urlConn.getHeaderField("Content-Length");
           log.log(Level.INFO, "Content-length: " + contentLengthStr);
-          int contentLength = contentLengthStr != null ? Integer
-              .parseInt(contentLengthStr) : 0;
-          return new Data(urlConn.getInputStream(), contentLength);
+          long contentLength = contentLengthStr != null ? Long
+              .parseLong(contentLengthStr) : -1;
+          // Whoever reads the data closes it, which also disconnects.
+          Data data = new Data(new ConnectionInputStream(urlConn),
+              contentLength);
+          event.set("succeeded", true).set("content_length", contentLength);
+          return data;
         } catch (IOException ex) {
           log.severe("Could not create Data object: " + ex.getMessage());
+          if (urlConn != null) {
+            urlConn.disconnect();
+          }
           return null;
+        } finally {
+          event.commit();
         }
       }
     };
     issue.setDataProvider(dataProvider);
+
+    // A HEAD request tells whether the publisher replaced the issue, without
+    // downloading it.
+    issue.setLengthProvider(new LengthProvider() {
+      @Override
+      public long getLength() throws IOException {
+        HttpURLConnection urlConn = (HttpURLConnection) new URL(urlStr)
+            .openConnection();
+        try {
+          Deadline.NONE.apply(urlConn);
+          urlConn.setRequestMethod("HEAD");
+          if (cookieData != null) {
+            urlConn.setRequestProperty("Cookie", cookieData.toString());
+          }
+          if (urlConn.getResponseCode() != 200) {
+            return -1;
+          }
+          String contentLength = urlConn.getHeaderField("Content-Length");
+          return contentLength != null ? Long.parseLong(contentLength) : -1;
+        } catch (NumberFormatException ex) {
+          return -1;
+        } finally {
+          urlConn.disconnect();
+        }
+      }
+    });
   }
 
   /**
-   * Parses the redirect age for the actual PDF Link URL.
+   * Parses the redirect age for the actual PDF Link URL. Returns
+   * <code>null</code> if the page does not link to an issue.
    */
   private static String parsePdfLink(String html) {
     // We have to search for the download link. The best way right now is to
     // search for the contents and end of the link, and then search backwards
     // the beginning of it. From there we just find the href, and we're done.
-	  final String DOWNLOAD_LINK_START = "<a href=\"http://www.kreis-anzeiger.de/epaper/pdf.php";
+	  final String DOWNLOAD_LINK_START = "<a href=\"" + Config.NAV_URL_HOST + "/pdf.php";
 
+    if (html.indexOf(DOWNLOAD_LINK_START) < 0) {
+      return null;
+    }
     int linkStart = html.indexOf(DOWNLOAD_LINK_START) + 9;
     int linkEnd = html.indexOf("\" ", linkStart);
+    if (linkEnd < 0) {
+      return null;
+    }
 
     final String href = html.substring(linkStart, linkEnd);
 
@@ -256,13 +616,17 @@ public class KaPubTools {
   private static String readStringFromStream(InputStream is) throws IOException {
     StringBuilder content = new StringBuilder();
     InputStreamReader reader = new InputStreamReader(is);
-    char[] buffer = new char[1024];
-    while (true) {
-      int num = reader.read(buffer);
-      if (num < 0) {
-        break;
+    try {
+      char[] buffer = new char[1024];
+      while (true) {
+        int num = reader.read(buffer);
+        if (num < 0) {
+          break;
+        }
+        content.append(buffer, 0, num);
       }
-      content.append(buffer, 0, num);
+    } finally {
+      reader.close();
     }
     return content.toString();
   }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Caches the result of the latest-issue lookup.
+ * <p>
+ * A fresh result is served as is. A stale result is served immediately while a
+ * single background revalidation runs. Only when there is no usable result at
+ * all do callers wait, and then all of them wait for the same lookup. Failed
+ * lookups are cached for a short time so that a broken upstream is not hit by
+ * every request. If a lookup fails, the last good issue is served regardless of
+ * its age.
+ */
+public class LatestIssueCache {
+  private static final Logger log = Logger.getLogger(LatestIssueCache.class
+      .getName());
+
+  /** Looks up the latest issue. */
+  public interface Loader {
+    /** Returns the latest issue. Throws if it could not be determined. */
+    public Issue load() throws Exception;
+  }
+
+  /** An answer of the cache. */
+  public static class Result {
+    /** The issue or <code>null</code> if there is none. */
+    public final Issue issue;
+    /** How old the issue is in milliseconds, or -1 if there is none. */
+    public final long ageMillis;
+    /**
+     * How the cache answered: "fresh", "stale", "negative", "joined", "miss"
+     * or "refresh".
+     */
+    public final String outcome;
+    /**
+     * Whether the last lookup failed, e.g. the one this answer waited for. The
+     * issue is then an older one, if any.
+     */
+    public final boolean failed;
+
+    Result(Issue issue, long ageMillis, String outcome, boolean failed) {
+      this.issue = issue;
+      this.ageMillis = ageMillis;
+      this.outcome = outcome;
+      this.failed = failed;
+    }
+
+    /** Returns the age in whole seconds, as used in HTTP headers. */
+    public long getAgeSeconds() {
+      return Math.max(0, ageMillis / 1000);
+    }
+  }
+
+  private final Loader loader;
+  private final Executor revalidationExecutor;
+  private final long freshMillis;
+  private final long maxStaleMillis;
+  private final long negativeTtlMillis;
+
+  // All guarded by 'this'.
+  private Issue issue;
+  private long loadedAt;
+  private long failedAt;
+  private boolean failed = false;
+  private boolean loading = false;
+
+  /**
+   * @param freshMillis how long a result is served without revalidating.
+   * @param maxStaleMillis how long a result is served while revalidating.
+   *          Older results are only served if the lookup fails.
+   * @param negativeTtlMillis how long a failed lookup is remembered.
+   */
+  public LatestIssueCache(Loader loader, Executor revalidationExecutor,
+      long freshMillis, long maxStaleMillis, long negativeTtlMillis) {
+    this.loader = loader;
+    this.revalidationExecutor = revalidationExecutor;
+    this.freshMillis = freshMillis;
+    this.maxStaleMillis = maxStaleMillis;
+    this.negativeTtlMillis = negativeTtlMillis;
+  }
+
+  /**
+   * Returns the latest issue according to the caching policy.
+   */
+  public Result get() {
+    boolean revalidate = false;
+    String outcome;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (issue != null && now - loadedAt < maxStaleMillis) {
+        boolean stale = now - loadedAt >= freshMillis;
+        outcome = stale ? "stale" : "fresh";
+        Counters.increment("latest_issue_cache." + outcome);
+        if (!stale || loading || isNegativeCached(now)) {
+          return getResult(now, outcome);
+        }
+        loading = true;
+        revalidate = true;
+      } else if (isNegativeCached(now)) {
+        Counters.increment("latest_issue_cache.negative");
+        return getResult(now, "negative");
+      } else if (loading) {
+        Counters.increment("latest_issue_cache.joined");
+        while (loading) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            break;
+          }
+        }
+        return getResult(System.currentTimeMillis(), "joined");
+      } else {
+        Counters.increment("latest_issue_cache.miss");
+        outcome = "miss";
+        loading = true;
+      }
+    }
+
+    if (revalidate) {
+      revalidationExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          load();
+        }
+      });
+    } else {
+      load();
+    }
+    synchronized (this) {
+      return getResult(System.currentTimeMillis(), outcome);
+    }
+  }
+
+  /**
+   * Seeds the cache with an issue that was looked up at the given time, e.g.
+   * one restored from disk at startup. Does nothing if there already is an
+   * issue.
+   */
+  public synchronized void seed(Issue seedIssue, long seedLoadedAt) {
+    if (issue == null) {
+      issue = seedIssue;
+      loadedAt = seedLoadedAt;
+    }
+  }
+
+  /**
+   * Looks up the latest issue now regardless of the age of the cached one and
+   * waits for the result. If a lookup is already running, waits for that one.
+   */
+  public Result refresh() {
+    synchronized (this) {
+      if (loading) {
+        while (loading) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            break;
+          }
+        }
+        return getResult(System.currentTimeMillis(), "joined");
+      }
+      loading = true;
+    }
+    load();
+    synchronized (this) {
+      return getResult(System.currentTimeMillis(), "refresh");
+    }
+  }
+
+  /**
+   * Returns whether {@link #get()} would have to wait for a lookup right now,
+   * i.e. there is neither a usable issue nor a remembered failure.
+   */
+  public synchronized boolean needsLoad() {
+    long now = System.currentTimeMillis();
+    return (issue == null || now - loadedAt >= maxStaleMillis)
+        && !isNegativeCached(now);
+  }
+
+  /**
+   * Returns the cached issue without triggering a lookup, or <code>null</code>
+   * if there is none.
+   */
+  public synchronized Issue peek() {
+    return issue;
+  }
+
+  private void load() {
+    try {
+      Issue loadedIssue = loader.load();
+      if (loadedIssue == null) {
+        throw new IllegalStateException("No issue found.");
+      }
+      synchronized (this) {
+        issue = loadedIssue;
+        loadedAt = System.currentTimeMillis();
+        failed = false;
+      }
+    } catch (Exception ex) {
+      log.warning("Latest issue lookup failed: " + ex.getMessage());
+      Counters.increment("latest_issue_cache.failures");
+      synchronized (this) {
+        failed = true;
+        failedAt = System.currentTimeMillis();
+      }
+    } finally {
+      synchronized (this) {
+        loading = false;
+        notifyAll();
+      }
+    }
+  }
+
+  private boolean isNegativeCached(long now) {
+    return failed && now - failedAt < negativeTtlMillis;
+  }
+
+  private Result getResult(long now, String outcome) {
+    return new Result(issue, issue != null ? now - loadedAt : -1, outcome,
+        failed);
+  }
+}
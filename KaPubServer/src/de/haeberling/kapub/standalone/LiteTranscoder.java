@@ -0,0 +1,599 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes the lite edition of an issue: the same PDF, with its photos at a
+ * lower resolution and JPEG quality. Photos make up most of an issue, so the
+ * lite edition is a fraction of its size.
+ * <p>
+ * Only what the publisher's PDFs use is supported: JPEG images and a classic
+ * cross-reference table, possibly with incremental updates. Anything else,
+ * like cross-reference streams or encryption, is left alone and no lite
+ * edition is written. The images are rewritten in place and a complete new
+ * cross-reference table is appended.
+ */
+public class LiteTranscoder {
+  private static final Logger log = Logger.getLogger(LiteTranscoder.class
+      .getName());
+  private static final String ENCODING = "ISO-8859-1";
+  /** How far we look for the dictionary of an object. */
+  private static final int MAX_DICTIONARY_LENGTH = 64 * 1024;
+
+  private static final Pattern OBJECT_HEADER = Pattern
+      .compile("^(\\d+)\\s+(\\d+)\\s+obj\\s*<<");
+  private static final Pattern IMAGE = Pattern
+      .compile("/Subtype\\s*/Image\\b");
+  private static final Pattern DCT_FILTER = Pattern
+      .compile("/Filter\\s*(?:/DCTDecode|\\[\\s*/DCTDecode\\s*\\])");
+  private static final Pattern WIDTH = Pattern.compile("/Width\\s+(\\d+)");
+  private static final Pattern HEIGHT = Pattern.compile("/Height\\s+(\\d+)");
+  private static final Pattern LENGTH = Pattern
+      .compile("/Length\\s+(\\d+)(?:\\s+(\\d+)\\s+R)?");
+  private static final Pattern INTEGER_OBJECT = Pattern
+      .compile("^\\d+\\s+\\d+\\s+obj\\s+(\\d+)\\s");
+  private static final Pattern PREV = Pattern.compile("/Prev\\s+(\\d+)");
+  private static final Pattern SIZE = Pattern.compile("/Size\\s+\\d+");
+
+  /** Where an object of the PDF starts, by object number. */
+  private static class XrefEntry {
+    final long offset;
+    final int generation;
+    final boolean inUse;
+
+    XrefEntry(long offset, int generation, boolean inUse) {
+      this.offset = offset;
+      this.generation = generation;
+      this.inUse = inUse;
+    }
+  }
+
+  /** An object of the PDF that is replaced by the given bytes. */
+  private static class Replacement {
+    final int start;
+    final int end;
+    final byte[] bytes;
+
+    Replacement(int start, int end, byte[] bytes) {
+      this.start = start;
+      this.end = end;
+      this.bytes = bytes;
+    }
+  }
+
+  private final int maxImageSize;
+  private final float quality;
+
+  /**
+   * @param maxImageSize the maximum width and height of an image in pixels.
+   * @param quality the JPEG quality of the images, between 0 and 1.
+   */
+  public LiteTranscoder(int maxImageSize, float quality) {
+    this.maxImageSize = maxImageSize;
+    this.quality = quality;
+  }
+
+  /**
+   * Writes the lite edition of the given PDF. Returns <code>false</code> and
+   * writes nothing if the PDF is not supported or would not get smaller.
+   */
+  public boolean transcode(File pdf, File lite) throws IOException {
+    if (pdf.length() > Config.LITE_MAX_FILE_BYTES) {
+      return false;
+    }
+    byte[] data = new byte[(int) pdf.length()];
+    RandomAccessFile input = new RandomAccessFile(pdf, "r");
+    try {
+      input.readFully(data);
+    } finally {
+      input.close();
+    }
+
+    TreeMap<Integer, XrefEntry> xref = new TreeMap<Integer, XrefEntry>();
+    String trailer;
+    try {
+      trailer = readXref(data, xref);
+    } catch (NumberFormatException ex) {
+      trailer = null;
+    }
+    if (trailer == null) {
+      log.info("Unsupported PDF, no lite edition: " + pdf);
+      return false;
+    }
+    List<Replacement> replacements = new ArrayList<Replacement>();
+    for (Map.Entry<Integer, XrefEntry> object : xref.entrySet()) {
+      if (object.getValue().inUse) {
+        Replacement replacement = transcodeImage(data, object.getValue(),
+            xref);
+        if (replacement != null) {
+          replacements.add(replacement);
+        }
+      }
+    }
+    if (replacements.isEmpty()) {
+      return false;
+    }
+    write(data, xref, trailer, replacements, lite);
+    return true;
+  }
+
+  /**
+   * Reads all cross-reference sections into the given map, the newest entry of
+   * each object winning. Returns the newest trailer dictionary, or
+   * <code>null</code> if the PDF is not supported.
+   */
+  private static String readXref(byte[] data, Map<Integer, XrefEntry> xref)
+      throws IOException {
+    int startxref = lastIndexOf(data, "startxref");
+    if (startxref < 0) {
+      return null;
+    }
+    Tokenizer tokens = new Tokenizer(data, startxref + 9);
+    long offset = tokens.nextLong();
+    String newestTrailer = null;
+    // Incremental updates chain the sections from newest to oldest.
+    int sections = 0;
+    while (offset >= 0) {
+      if (offset >= data.length || ++sections > 1000) {
+        return null;
+      }
+      tokens = new Tokenizer(data, (int) offset);
+      if (!"xref".equals(tokens.next())) {
+        // A cross-reference stream.
+        return null;
+      }
+      String token;
+      while (!(token = tokens.next()).startsWith("trailer")) {
+        int first = Integer.parseInt(token);
+        int count = Integer.parseInt(tokens.next());
+        for (int i = 0; i < count; ++i) {
+          long objectOffset = tokens.nextLong();
+          int generation = Integer.parseInt(tokens.next());
+          boolean inUse = "n".equals(tokens.next());
+          if (!xref.containsKey(first + i)) {
+            xref.put(first + i, new XrefEntry(objectOffset, generation, inUse));
+          }
+        }
+      }
+      // The dictionary may follow the keyword without whitespace.
+      int dictionaryStart = skipWhitespace(data, tokens.getPosition()
+          - token.length() + 7);
+      String trailer = readDictionary(data, dictionaryStart);
+      if (trailer == null || trailer.contains("/Encrypt")
+          || trailer.contains("/XRefStm")) {
+        return null;
+      }
+      if (newestTrailer == null) {
+        newestTrailer = trailer;
+      }
+      Matcher prev = PREV.matcher(trailer);
+      offset = prev.find() ? Long.parseLong(prev.group(1)) : -1;
+    }
+    return newestTrailer;
+  }
+
+  /**
+   * Returns the replacement of the given object if it is a JPEG image that
+   * gets smaller, or <code>null</code> otherwise.
+   */
+  private Replacement transcodeImage(byte[] data, XrefEntry object,
+      Map<Integer, XrefEntry> xref) {
+    if (object.offset < 0 || object.offset >= data.length) {
+      return null;
+    }
+    int start = (int) object.offset;
+    Matcher header = OBJECT_HEADER.matcher(getString(data, start, 64));
+    if (!header.find()) {
+      return null;
+    }
+    int dictionaryStart = start + header.end() - 2;
+    String dictionary = readDictionary(data, dictionaryStart);
+    if (dictionary == null || !IMAGE.matcher(dictionary).find()
+        || !DCT_FILTER.matcher(dictionary).find()
+        || dictionary.contains("/DecodeParms")) {
+      return null;
+    }
+    Matcher width = WIDTH.matcher(dictionary);
+    Matcher height = HEIGHT.matcher(dictionary);
+    Matcher length = LENGTH.matcher(dictionary);
+    if (!width.find() || !height.find() || !length.find()) {
+      return null;
+    }
+    int streamLength = length.group(2) != null ? resolveInteger(data, xref,
+        Integer.parseInt(length.group(1))) : Integer.parseInt(length.group(1));
+
+    // The stream keyword is followed by CRLF or LF, then the data.
+    int position = skipWhitespace(data, dictionaryStart + dictionary.length());
+    if (!getString(data, position, 6).equals("stream")) {
+      return null;
+    }
+    position += 6;
+    if (position < data.length && data[position] == '\r') {
+      ++position;
+    }
+    if (position >= data.length || data[position] != '\n') {
+      return null;
+    }
+    int streamStart = position + 1;
+    int streamEnd = streamStart + streamLength;
+    if (streamLength < 0 || streamEnd > data.length
+        || !getString(data, skipWhitespace(data, streamEnd), 9).equals(
+            "endstream")) {
+      return null;
+    }
+    int end = indexOf(data, "endobj", streamEnd);
+    if (end < 0) {
+      return null;
+    }
+    end += 6;
+
+    byte[] jpeg;
+    BufferedImage image;
+    try {
+      image = decode(data, streamStart, streamLength);
+      if (image == null) {
+        return null;
+      }
+      image = scale(image);
+      jpeg = encode(image);
+    } catch (IOException ex) {
+      // Color spaces like CMYK, which ImageIO can't read.
+      log.fine("Could not transcode image: " + ex.getMessage());
+      return null;
+    } catch (RuntimeException ex) {
+      log.fine("Could not transcode image: " + ex.getMessage());
+      return null;
+    }
+    if (jpeg == null || jpeg.length >= streamLength) {
+      return null;
+    }
+
+    dictionary = replace(dictionary, width, "/Width " + image.getWidth());
+    dictionary = replace(dictionary, HEIGHT.matcher(dictionary), "/Height "
+        + image.getHeight());
+    dictionary = replace(dictionary, LENGTH.matcher(dictionary), "/Length "
+        + jpeg.length);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+          jpeg.length + dictionary.length() + 64);
+      bytes.write((header.group(1) + " " + header.group(2) + " obj\n"
+          + dictionary + "\nstream\n").getBytes(ENCODING));
+      bytes.write(jpeg);
+      bytes.write("\nendstream\nendobj".getBytes(ENCODING));
+      return new Replacement(start, end, bytes.toByteArray());
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Decodes the given JPEG, subsampled to no less than our maximum size so a
+   * large image never has to be held in full. Returns <code>null</code> if the
+   * image can't be read or has too many pixels.
+   */
+  private BufferedImage decode(byte[] data, int offset, int length)
+      throws IOException {
+    ImageInputStream input = ImageIO.createImageInputStream(
+        new ByteArrayInputStream(data, offset, length));
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        if ((long) width * height > Config.LITE_MAX_SOURCE_PIXELS) {
+          log.fine("Image too large to transcode: " + width + "x" + height);
+          return null;
+        }
+        int subsampling = Math.max(1, Math.max(width, height) / maxImageSize);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Scales the given image down to fit our maximum size, keeping whether it
+   * is gray or in color. Halving first keeps bilinear scaling from skipping
+   * pixels.
+   */
+  private BufferedImage scale(BufferedImage image) {
+    int type = image.getColorModel().getNumColorComponents() == 1
+        ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+    int longest = Math.max(image.getWidth(), image.getHeight());
+    double factor = Math.min(1.0, (double) maxImageSize / longest);
+    int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * factor));
+    int targetHeight = Math
+        .max(1, (int) Math.round(image.getHeight() * factor));
+    BufferedImage scaled = image;
+    do {
+      int nextWidth = Math.max(targetWidth, scaled.getWidth() / 2);
+      int nextHeight = Math.max(targetHeight, scaled.getHeight() / 2);
+      BufferedImage next = new BufferedImage(nextWidth, nextHeight, type);
+      Graphics2D graphics = next.createGraphics();
+      try {
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(scaled, 0, 0, nextWidth, nextHeight, null);
+      } finally {
+        graphics.dispose();
+      }
+      scaled = next;
+    } while (scaled.getWidth() > targetWidth
+        || scaled.getHeight() > targetHeight);
+    return scaled;
+  }
+
+  private byte[] encode(BufferedImage image) throws IOException {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+    if (!writers.hasNext()) {
+      return null;
+    }
+    ImageWriter writer = writers.next();
+    try {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ImageOutputStream output = ImageIO.createImageOutputStream(bytes);
+      try {
+        writer.setOutput(output);
+        writer.write(null, new IIOImage(image, null, null), param);
+      } finally {
+        output.close();
+      }
+      return bytes.toByteArray();
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  /**
+   * Writes the PDF with the given replacements and a new cross-reference table
+   * that covers all objects, so no older section is needed.
+   */
+  private static void write(byte[] data, TreeMap<Integer, XrefEntry> xref,
+      String trailer, List<Replacement> replacements, File lite)
+      throws IOException {
+    // Replacements are in order of object number, the file is not.
+    Replacement[] sorted = replacements.toArray(new Replacement[0]);
+    Arrays.sort(sorted, new Comparator<Replacement>() {
+      @Override
+      public int compare(Replacement a, Replacement b) {
+        return a.start < b.start ? -1 : a.start == b.start ? 0 : 1;
+      }
+    });
+
+    OutputStream output = new BufferedOutputStream(new FileOutputStream(lite));
+    try {
+      int position = 0;
+      for (Replacement replacement : sorted) {
+        output.write(data, position, replacement.start - position);
+        output.write(replacement.bytes);
+        position = replacement.end;
+      }
+      output.write(data, position, data.length - position);
+      long xrefOffset = data.length + getShift(sorted, data.length);
+
+      int size = xref.lastKey() + 1;
+      StringBuilder table = new StringBuilder("\nxref\n0 " + size + "\n");
+      for (int i = 0; i < size; ++i) {
+        XrefEntry entry = xref.get(i);
+        if (entry != null && entry.inUse) {
+          long offset = entry.offset + getShift(sorted, entry.offset);
+          table.append(String.format(Locale.US, "%010d %05d n\r\n", offset,
+              entry.generation));
+        } else {
+          table.append(i == 0 ? "0000000000 65535 f\r\n"
+              : "0000000000 00000 f\r\n");
+        }
+      }
+      trailer = PREV.matcher(trailer).replaceAll("");
+      trailer = SIZE.matcher(trailer).replaceFirst("/Size " + size);
+      table.append("trailer\n").append(trailer).append("\nstartxref\n")
+          .append(xrefOffset + 1).append("\n%%EOF\n");
+      output.write(table.toString().getBytes(ENCODING));
+    } finally {
+      output.close();
+    }
+  }
+
+  /** How far the given offset of the original moves in the lite edition. */
+  private static long getShift(Replacement[] sorted, long offset) {
+    long shift = 0;
+    for (Replacement replacement : sorted) {
+      if (replacement.start >= offset) {
+        break;
+      }
+      shift += replacement.bytes.length - (replacement.end - replacement.start);
+    }
+    return shift;
+  }
+
+  /** Returns the value of an object that is just an integer, or -1. */
+  private static int resolveInteger(byte[] data, Map<Integer, XrefEntry> xref,
+      int objectNumber) {
+    XrefEntry entry = xref.get(objectNumber);
+    if (entry == null || !entry.inUse || entry.offset >= data.length) {
+      return -1;
+    }
+    Matcher matcher = INTEGER_OBJECT.matcher(getString(data,
+        (int) entry.offset, 64));
+    return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+  }
+
+  /**
+   * Returns the dictionary starting with "&lt;&lt;" at the given position,
+   * including nested ones, or <code>null</code> if there is none.
+   */
+  private static String readDictionary(byte[] data, int start) {
+    if (!getString(data, start, 2).equals("<<")) {
+      return null;
+    }
+    int depth = 0;
+    int end = Math.min(data.length - 1, start + MAX_DICTIONARY_LENGTH);
+    for (int i = start; i < end; ++i) {
+      if (data[i] == '<' && data[i + 1] == '<') {
+        ++depth;
+        ++i;
+      } else if (data[i] == '>' && data[i + 1] == '>') {
+        ++i;
+        if (--depth == 0) {
+          return getString(data, start, i + 1 - start);
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String replace(String dictionary, Matcher matcher,
+      String replacement) {
+    matcher.reset();
+    if (!matcher.find()) {
+      return dictionary;
+    }
+    return dictionary.substring(0, matcher.start()) + replacement
+        + dictionary.substring(matcher.end());
+  }
+
+  private static String getString(byte[] data, int start, int length) {
+    try {
+      return new String(data, start, Math.max(0, Math.min(length, data.length
+          - start)), ENCODING);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static int skipWhitespace(byte[] data, int position) {
+    while (position < data.length && isWhitespace(data[position])) {
+      ++position;
+    }
+    return position;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f'
+        || b == 0;
+  }
+
+  private static int indexOf(byte[] data, String needle, int from) {
+    byte[] bytes = toBytes(needle);
+    outer: for (int i = from; i <= data.length - bytes.length; ++i) {
+      for (int j = 0; j < bytes.length; ++j) {
+        if (data[i + j] != bytes[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static int lastIndexOf(byte[] data, String needle) {
+    byte[] bytes = toBytes(needle);
+    outer: for (int i = data.length - bytes.length; i >= 0; --i) {
+      for (int j = 0; j < bytes.length; ++j) {
+        if (data[i + j] != bytes[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static byte[] toBytes(String ascii) {
+    byte[] bytes = new byte[ascii.length()];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = (byte) ascii.charAt(i);
+    }
+    return bytes;
+  }
+
+  /** Splits the cross-reference table into whitespace separated tokens. */
+  private static class Tokenizer {
+    private final byte[] data;
+    private int position;
+
+    Tokenizer(byte[] data, int position) {
+      this.data = data;
+      this.position = position;
+    }
+
+    String next() throws IOException {
+      position = skipWhitespace(data, position);
+      int start = position;
+      while (position < data.length && !isWhitespace(data[position])) {
+        ++position;
+      }
+      if (start == position) {
+        throw new IOException("Unexpected end of cross-reference table.");
+      }
+      return getString(data, start, position - start);
+    }
+
+    long nextLong() throws IOException {
+      return Long.parseLong(next());
+    }
+
+    int getPosition() {
+      return position;
+    }
+  }
+}
@@ -43,8 +43,12 @@ public class Mailing extends Thread {
   private final String subject;
   private final String text;
 
-  /** Asynchronously sends out an e-mail. */
+  /** Asynchronously sends out an e-mail, if mail is configured. */
   public static void sendMail(String subject, String text) {
+    // Don't start a thread per request just to fail connecting.
+    if (SMTP_SERVER.isEmpty()) {
+      return;
+    }
     (new Mailing(subject, text)).start();
   }
 
@@ -18,12 +18,19 @@ package de.haeberling.kapub.standalone;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import org.simpleframework.http.Request;
@@ -43,15 +50,127 @@ public class Main implements Container {
   private static final String AUTH_TOKEN_PARAM = "a";
   private static final int PORT = 9999;
 
+  /** Tells clients how many seconds ago the served issue was looked up. */
+  private static final String STALENESS_HEADER = "X-KaPub-Staleness";
+
   private static Issue cachedIssue = null;
+  private static IssueStore issueStore = null;
+  private static LatestIssueCache latestIssueCache = null;
+  private static TransferScheduler transferScheduler = null;
+  private static final ResponseCache responseCache = new ResponseCache();
+  private static UrlSigner urlSigner = null;
+  private static SessionPool sessionPool = null;
+  private static final IssueEvents issueEvents = new IssueEvents(
+      Config.EVENTS_MAX_CLIENTS, Config.EVENTS_WRITER_THREADS,
+      Config.EVENTS_MAX_QUEUED, Config.EVENTS_KEEP_ALIVE_MILLIS,
+      Config.EVENTS_WRITE_TIMEOUT_MILLIS);
+  /**
+   * Bounds the requests that have to wait for upstream. Requests served from
+   * the store or the caches never go through it.
+   */
+  private static final AdmissionController upstreamAdmission = new AdmissionController(
+      "upstream", Config.ADMISSION_MIN_LIMIT, Config.ADMISSION_MAX_LIMIT,
+      Config.ADMISSION_MAX_QUEUE, Config.ADMISSION_TARGET_LATENCY_MILLIS,
+      Config.ADMISSION_MAX_WAIT_MILLIS);
+  /** Where the session, URL secret and issues are kept. */
+  private static File dataDirectory = null;
+  /** Elects the node that fetches from upstream, if running multi-node. */
+  private static SharedLock fetchLock = null;
+  /** Whether the warm start is done and requests can be routed to us. */
+  private static volatile boolean ready = false;
+
+  /** Runs the phases of upstream issue fetches. */
+  private static final ExecutorService upstreamExecutor = Executors
+      .newCachedThreadPool();
+  private static final IssueFetch.Timeouts upstreamTimeouts = new IssueFetch.Timeouts(
+      Config.SESSION_TIMEOUT_MILLIS, Config.OVERVIEW_TIMEOUT_MILLIS);
 
   public static void main(String[] args) throws IOException {
     log.info("Kreis-Anzeiger Publisher Main starting up");
+    boolean shared = !Config.SHARED_PATH.isEmpty();
+    dataDirectory = new File(shared ? Config.SHARED_PATH : Config.CACHE_PATH);
+    issueStore = IssueStore.open(new File(dataDirectory,
+        Config.ISSUE_STORE_DIR));
+    if (issueStore == null) {
+      log.warning("Issue store not available. Issues will not be cached.");
+    } else if (shared) {
+      fetchLock = new SharedLock(new File(dataDirectory,
+          Config.FETCH_LOCK_FILE));
+      log.info("Running multi-node on " + dataDirectory);
+    }
+    urlSigner = UrlSigner.create(new File(dataDirectory,
+        Config.URL_SECRET_FILE), Config.SIGNED_URL_TTL_SECONDS);
+    sessionPool = new SessionPool(dataDirectory,
+        Config.SESSION_POOL_MAX_SESSIONS, Config.SESSION_IDLE_MILLIS);
+    responseCache.addAsset("/icon57.png", "data/icon57.png", "image/png");
+    responseCache.addAsset("/favicon.ico", "data/favicon57.png", "image/png");
+    if (Config.TRANSFER_BYTES_PER_SECOND > 0) {
+      transferScheduler = new TransferScheduler(
+          Config.TRANSFER_BYTES_PER_SECOND, Config.TRANSFER_CHUNK_SIZE);
+    }
+    latestIssueCache = new LatestIssueCache(new LatestIssueCache.Loader() {
+      @Override
+      public Issue load() throws Exception {
+        Issue issue = loadLatestIssue();
+        announce(issue);
+        return issue;
+      }
+    }, upstreamExecutor, Config.LATEST_ISSUE_FRESH_MILLIS,
+        Config.LATEST_ISSUE_MAX_STALE_MILLIS,
+        Config.LATEST_ISSUE_NEGATIVE_TTL_MILLIS);
     Container container = new Main();
     Connection connection = new SocketConnection(container);
     SocketAddress address = new InetSocketAddress(PORT);
     connection.connect(address);
-    log.info("Web server now ready on port " + PORT + ".");
+    log.info("Web server now listening on port " + PORT + ".");
+
+    upstreamExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        warmStart();
+      }
+    });
+  }
+
+  /**
+   * Restores the last known issue from the store, so it can be served right
+   * away, then validates the session and looks up the current issue. The
+   * session is restored by the cookie store, which keeps it on disk. Once the
+   * current issue is in the store, the server reports to be ready.
+   */
+  private static void warmStart() {
+    PhaseEvent event = PhaseEvent.begin("warm_start").set("restored", false);
+    try {
+      if (issueStore != null) {
+        IssueManifest.Entry latest = issueStore.getManifest().getLatest();
+        Issue restoredIssue = latest != null ? issueStore
+            .getIssue(latest.issueId) : null;
+        if (restoredIssue != null) {
+          // The file was written right after the issue was looked up.
+          latestIssueCache.seed(restoredIssue,
+              issueStore.getFile(latest.issueId).lastModified());
+          cachedIssue = restoredIssue;
+          announce(restoredIssue);
+          event.set("restored", true);
+          log.info("Restored issue " + latest.issueId + " from the store.");
+        }
+      }
+
+      LatestIssueCache.Result result = latestIssueCache.refresh();
+      if (result.issue != null) {
+        cachedIssue = result.issue;
+      }
+      event.set("issue", result.issue != null ? result.issue.getFileName()
+          : null);
+    } catch (RuntimeException ex) {
+      log.severe("Warm start failed: " + ex.getMessage());
+    } finally {
+      // Even without an issue we are as ready as we can be, requests will
+      // retry the lookup.
+      ready = true;
+      event.commit();
+      log.info("Web server now ready on port " + PORT + ".");
+    }
   }
 
   @Override
@@ -65,6 +184,29 @@ public class Main implements Container {
       }
     } catch (Exception ex) {
       log.severe("Error while serving non-auth request: " + ex.getMessage());
+      closeAfterError(resp);
+      return;
+    }
+
+    // Check whether this is a request from a mirror client.
+    try {
+      if (handleMirrorRequest(req, resp)) {
+        return;
+      }
+    } catch (Exception ex) {
+      log.severe("Error while serving mirror request: " + ex.getMessage());
+      closeAfterError(resp);
+      return;
+    }
+
+    // Check whether this is a request for the issue of a certain date.
+    try {
+      if (handleIssueByDateRequest(req, resp)) {
+        return;
+      }
+    } catch (Exception ex) {
+      log.severe("Error while serving issue by date: " + ex.getMessage());
+      closeAfterError(resp);
       return;
     }
 
@@ -82,29 +224,80 @@ public class Main implements Container {
       // }
     } catch (Exception ex) {
       log.warning("Could not read auth token," + ex.getMessage());
-      resp.setCode(500);
+      closeAfterError(resp);
       return;
     }
 
     try {
       boolean loadIndexPage = req.getAddress().getPath().toString().equals("/");
       boolean loadPdf = Boolean.parseBoolean(req.getParameter("pdf"));
+      boolean lite = Boolean.parseBoolean(req.getParameter(Config.LITE_PARAM));
       if (loadPdf) {
-        if (cachedIssue == null) {
-          handleIndexPageRequest(resp, true, authToken);
+        // The issue URL has to be signed by us and not expired.
+        String issueId = getIssueId(req);
+        long expiry = urlSigner.verify(issueId,
+            req.getParameter(UrlSigner.EXPIRY_PARAM),
+            req.getParameter(UrlSigner.SIGNATURE_PARAM));
+        if (expiry < 0) {
+          log.warning("Issue URL signature invalid or expired.");
+          resp.setCode(403);
+          resp.close();
+          return;
+        }
+        Issue issue = issueStore != null ? issueStore.getIssue(issueId) : null;
+        if (issue == null && cachedIssue != null
+            && cachedIssue.getFileName().equals(issueId)) {
+          issue = cachedIssue;
+        }
+        if (issue == null) {
+          handleIndexPageRequest(resp, true, false);
+        } else if (issue != cachedIssue) {
+          handlePdfServingRequest(resp, issue, expiry, lite, null);
         } else {
-          handlePdfServingRequest(resp);
+          // Not in the store, so this streams from the publisher.
+          AdmissionController.Permit permit = admit(resp);
+          if (permit == null) {
+            return;
+          }
+          try {
+            handlePdfServingRequest(resp, issue, expiry, false, permit);
+          } finally {
+            // Does nothing if upstream answered and it was released already.
+            permit.release(false);
+          }
         }
       } else if (loadIndexPage) {
         // Send e-mail about successful auth request.
         Mailing.sendMail("KaPub Request", req.toString() + "\n\nFrom: "
             + "From: " + req.getClientAddress().toString());
-        // TODO. Make tools a member and set proper login data.
-        LoginData loginData = null;
-        KaPubTools tools = new KaPubTools(loginData);
-        cachedIssue = tools.getLatestIssue(new File(Config.CACHE_PATH));
+        // Only a lookup we have to wait for is expensive, cached results are
+        // always served.
+        AdmissionController.Permit permit = null;
+        if (latestIssueCache.needsLoad()) {
+          permit = admit(resp);
+          if (permit == null) {
+            return;
+          }
+        }
+        PhaseEvent event = PhaseEvent.begin("latest_issue");
+        LatestIssueCache.Result result = null;
+        try {
+          result = latestIssueCache.get();
+        } finally {
+          if (permit != null) {
+            // A stale issue served after a failed lookup is no success.
+            permit.release(result != null && !result.failed);
+          }
+        }
+        event.set("cache", result.outcome).set("age_s", result.getAgeSeconds())
+            .commit();
+        cachedIssue = result.issue;
         boolean error = cachedIssue == null;
-        handleIndexPageRequest(resp, error, authToken);
+        if (!error) {
+          resp.set("Age", String.valueOf(result.getAgeSeconds()));
+          resp.set(STALENESS_HEADER, String.valueOf(result.getAgeSeconds()));
+        }
+        handleIndexPageRequest(resp, error, lite);
       } else {
         log.info("Not processing this request");
         resp.setCode(404);
@@ -113,44 +306,201 @@ public class Main implements Container {
     } catch (Exception e) {
       e.printStackTrace();
       log.severe("Error while serving response: " + e.getMessage());
+      closeAfterError(resp);
     }
   }
 
   /**
-   * Serves the index page.
+   * Closes the response of a request that failed. Unless something was sent
+   * already, the client gets a 500. Otherwise the connection would stay open.
+   */
+  private static void closeAfterError(Response resp) {
+    try {
+      if (!resp.isCommitted()) {
+        resp.setCode(500);
+        resp.setContentLength(0);
+      }
+      resp.close();
+    } catch (IOException ex) {
+      // The client is gone anyway.
+    }
+  }
+
+  /**
+   * Returns the latest issue. Used by the latest issue cache, which decides
+   * when this is necessary.
+   * <p>
+   * When running multi-node, whichever node gets the fetch lock first is the
+   * leader and fetches from upstream. The others wait for the lock and then
+   * find the issue the leader published. If the leader failed, the next node
+   * takes over.
+   */
+  private static Issue loadLatestIssue() throws Exception {
+    if (fetchLock == null) {
+      return fetchLatestIssue();
+    }
+    SharedLock.Lease lease = fetchLock.acquire(Config.FETCH_LOCK_TIMEOUT_MILLIS);
+    try {
+      Issue publishedIssue = issueStore
+          .getPublishedLatest(Config.LATEST_ISSUE_FRESH_MILLIS);
+      if (publishedIssue != null) {
+        Counters.increment("fetch_lock.followed");
+        log.info("Using issue published by another node.");
+        return publishedIssue;
+      }
+      Counters.increment("fetch_lock.led");
+      Issue latestIssue = fetchLatestIssue();
+      if (latestIssue != null) {
+        issueStore.publishLatest(latestIssue.getFileName());
+      }
+      return latestIssue;
+    } finally {
+      lease.release();
+    }
+  }
+
+  /**
+   * Looks up the latest issue upstream and makes sure it is in the store.
+   */
+  private static Issue fetchLatestIssue() throws Exception {
+    Deadline deadline = Deadline.after(Config.UPSTREAM_LOOKUP_DEADLINE_MILLIS);
+    SessionPool.Session session = sessionPool.acquire(sessionPool
+        .getDefaultAccount());
+    Issue latestIssue;
+    try {
+      IssueFetch fetch = session.getTools().getLatestIssueAsync(
+          session.getDirectory(), upstreamExecutor, upstreamTimeouts, deadline);
+      try {
+        latestIssue = fetch.get(deadline.getRemainingMillis(),
+            TimeUnit.MILLISECONDS);
+      } catch (ExecutionException ex) {
+        throw new IOException("Could not fetch latest issue: "
+            + ex.getCause().getMessage());
+      } catch (TimeoutException ex) {
+        // Aborts whatever request is still running.
+        fetch.cancel(true);
+        Counters.increment("deadline.expired");
+        throw new IOException("Latest issue lookup missed its deadline.");
+      }
+    } finally {
+      session.release();
+    }
+
+    // Download the issue into the store once, so that it can be served to
+    // all clients and mirrors without going back to the publisher.
+    if (latestIssue != null && issueStore != null) {
+      latestIssue = issueStore.store(latestIssue);
+    }
+    return latestIssue;
+  }
+
+  /**
+   * Admits a request that has to wait for upstream. If we are saturated, this
+   * answers with a 503 and returns <code>null</code>.
+   */
+  private static AdmissionController.Permit admit(Response resp)
+      throws IOException {
+    AdmissionController.Permit permit = upstreamAdmission.acquire();
+    if (permit == null) {
+      resp.setCode(503);
+      resp.setText("Service Unavailable");
+      resp.set("Retry-After",
+          String.valueOf(upstreamAdmission.getRetryAfterSeconds()));
+      resp.setContentLength(0);
+      resp.close();
+    }
+    return permit;
+  }
+
+  /**
+   * Announces the given issue to event stream clients, if it is new.
+   */
+  private static void announce(Issue issue) {
+    IssueManifest.Entry entry = issue != null && issueStore != null ? issueStore
+        .getManifest().getEntry(issue.getFileName()) : null;
+    if (entry != null) {
+      issueEvents.publish(entry);
+    }
+  }
+
+  /**
+   * Serves the index page, which leads to the lite edition if asked to.
    */
   public void handleIndexPageRequest(Response resp, boolean error,
-      String authToken) throws IOException {
+      boolean lite) throws IOException {
     setResponseHeaders(resp, "text/html");
-    PrintStream body = resp.getPrintStream();
-    body.println("<html><head><title>Kreis-Anzeiger</title>");
-    body.println("<link rel=\"apple-touch-icon\" href=\"/icon57.png\"/>");
+    String signedQuery = null;
     if (!error) {
-      String fileName = cachedIssue.getFileName() + ".pdf";
-      body.println("<meta http-equiv=\"refresh\" content=\"0;url=" + fileName
-          + "?pdf=true&a=" + authToken + "\"></head><body>");
-    }
-    body.println("<style>body {font-family:Arial;font-size:4em}</style>");
-    if (!error) {
-      body.println("Ausgabe wird geladen ... ");
-    } else {
-      body.println("Es ist ein Fehler aufgetreten. Bitte Sascha bescheid geben ;)");
+      signedQuery = urlSigner.getQuery(cachedIssue.getFileName(),
+          urlSigner.getCurrentExpiry());
+      if (lite) {
+        signedQuery += "&" + Config.LITE_PARAM + "=true";
+      }
     }
-    body.println("</body></html>");
-    body.close();
+    responseCache.serveIndexPage(resp, error ? null : cachedIssue, signedQuery);
     log.info("Index page response served.");
   }
 
   /**
-   * Serves the PDF from the cached stream.
+   * Serves the PDF from the cached stream. The lite edition is served instead
+   * if asked for and available, otherwise the issue itself.
+   *
+   * @param permit if not <code>null</code>, released as soon as the data is
+   *          available. Sending it to the client is not upstream's work.
    */
-  public static void handlePdfServingRequest(Response resp) throws IOException {
-    Data data = cachedIssue.getData();
-    if (data.contentLength > 0) {
-      resp.setContentLength(data.contentLength);
+  public static void handlePdfServingRequest(Response resp, Issue issue,
+      long expiry, boolean lite, AdmissionController.Permit permit)
+      throws IOException {
+    // The URL is signed and will not change until it expires, so anything in
+    // between may cache it until then.
+    long maxAge = Math.max(0, expiry - System.currentTimeMillis() / 1000);
+    resp.set("Cache-Control", "public, max-age=" + maxAge);
+    resp.setDate("Expires", expiry * 1000);
+    IssueManifest.Entry entry = issueStore != null ? issueStore.getManifest()
+        .getEntry(issue.getFileName()) : null;
+    File liteFile = lite && entry != null ? issueStore.getLiteFile(issue
+        .getFileName()) : null;
+    if (entry != null) {
+      resp.set("ETag", "\"" + entry.hash + (liteFile != null ? "-lite" : "")
+          + "\"");
+    }
+
+    // Let the reverse proxy serve the bytes, we only authorized the request.
+    if (entry != null && !Config.OFFLOAD_HEADER.isEmpty()) {
+      File file = liteFile != null ? liteFile : issueStore.getFile(issue
+          .getFileName());
+      setResponseHeaders(resp, "application/pdf");
+      if (Config.OFFLOAD_HEADER.equals("X-Sendfile")) {
+        resp.set(Config.OFFLOAD_HEADER, file.getAbsolutePath());
+      } else {
+        resp.set(Config.OFFLOAD_HEADER, Config.OFFLOAD_LOCATION
+            + file.getName());
+      }
+      resp.setContentLength(0);
+      resp.close();
+      log.info("PDF offloaded to reverse proxy.");
+      return;
+    }
+
+    Data data;
+    if (liteFile != null) {
+      Counters.increment("lite.served");
+      data = new Data(new FileInputStream(liteFile), liteFile.length());
+    } else {
+      data = issue.getData();
     }
-    if (serveStream(resp, data.stream, "application/pdf")) {
-      log.info("PDF served.");
+    if (permit != null) {
+      permit.release(data != null);
+    }
+    if (data == null) {
+      throw new IOException("Could not get data for issue "
+          + issue.getFileName());
+    }
+    if (data.contentLength >= 0) {
+      setContentLength(resp, data.contentLength);
+    }
+    if (serveStream(resp, data.stream, "application/pdf", true)) {
+      log.info(liteFile != null ? "Lite PDF served." : "PDF served.");
     }
   }
 
@@ -161,56 +511,301 @@ public class Main implements Container {
   private static boolean handleNonAuthRequest(Request req, Response resp)
       throws IOException {
 
-    String fileToServe = null;
-    if (req.getPath().toString().equals("/icon57.png")) {
-      fileToServe = "data/icon57.png";
-    } else if (req.getPath().toString().equals("/favicon.ico")) {
-      fileToServe = "data/favicon57.png";
+    if (req.getPath().toString().equals("/ready")) {
+      byte[] status = (ready ? "ready\n" : "warming up\n").getBytes("UTF-8");
+      if (!ready) {
+        resp.setCode(503);
+        resp.setText("Service Unavailable");
+      }
+      resp.setContentLength(status.length);
+      serveStream(resp, new ByteArrayInputStream(status),
+          "text/plain; charset=UTF-8");
+      return true;
+    }
+
+    if (req.getPath().toString().equals(Config.EVENTS_PATH)) {
+      issueEvents.subscribe(req, resp);
+      return true;
+    }
+
+    if (req.getPath().toString().equals("/recording")) {
+      byte[] recording = PhaseEvent.formatRecording().getBytes("UTF-8");
+      resp.setContentLength(recording.length);
+      serveStream(resp, new ByteArrayInputStream(recording),
+          "text/plain; charset=UTF-8");
+      return true;
     }
 
-    if (fileToServe != null) {
+    if (req.getPath().toString().equals("/stats")) {
+      byte[] stats = Counters.format().getBytes("UTF-8");
+      resp.setContentLength(stats.length);
+      serveStream(resp, new ByteArrayInputStream(stats),
+          "text/plain; charset=UTF-8");
+      return true;
+    }
+
+    ResponseCache.CachedResponse asset = responseCache.getAsset(req.getPath()
+        .toString());
+    if (asset != null) {
       log.info("Serving " + req.getPath().toString());
-      InputStream stream = Main.class.getResourceAsStream(fileToServe);
-      serveStream(resp, stream, "image/png");
+      asset.serve(req, resp);
       return true;
     }
 
     return false;
   }
 
+  /**
+   * Handles the manifest, issue and delta requests of mirror clients. Returns
+   * whether the request was served and thus no further handling is required.
+   */
+  private static boolean handleMirrorRequest(Request req, Response resp)
+      throws IOException {
+    String path = req.getPath().getPath();
+    boolean manifestRequest = path.equals(Config.MIRROR_MANIFEST_PATH);
+    boolean issueRequest = path.startsWith(Config.MIRROR_ISSUE_PATH);
+    boolean deltaRequest = path.startsWith(Config.MIRROR_DELTA_PATH);
+    if (!manifestRequest && !issueRequest && !deltaRequest) {
+      return false;
+    }
+
+    String authToken = req.getParameter(AUTH_TOKEN_PARAM);
+    if (issueStore == null || Config.MIRROR_AUTH_TOKEN.isEmpty()
+        || !Config.MIRROR_AUTH_TOKEN.equals(authToken)) {
+      log.warning("Mirror request not authorized.");
+      resp.setCode(401);
+      resp.close();
+      return true;
+    }
+
+    if (manifestRequest) {
+      byte[] manifest = issueStore.getManifest().serialize().getBytes("UTF-8");
+      resp.setContentLength(manifest.length);
+      serveStream(resp, new ByteArrayInputStream(manifest),
+          "text/plain; charset=UTF-8");
+      log.info("Manifest served.");
+      return true;
+    }
+    if (deltaRequest) {
+      serveDelta(req, resp);
+      return true;
+    }
+
+    String issueId = getIssueId(req);
+    Issue issue = issueId != null ? issueStore.getIssue(issueId) : null;
+    Data data = issue != null ? issue.getData() : null;
+    if (data == null) {
+      resp.setCode(404);
+      resp.close();
+      return true;
+    }
+    setContentLength(resp, data.contentLength);
+    if (serveStream(resp, data.stream, "application/pdf", true)) {
+      log.info("Mirrored issue served: " + issueId);
+    }
+    return true;
+  }
+
+  /**
+   * Serves the changes of an issue against the block signature of an older
+   * edition, which the client posts. This way a client that has an edition the
+   * publisher has since corrected only fetches the blocks that changed.
+   */
+  private static void serveDelta(Request req, Response resp)
+      throws IOException {
+    String issueId = getIssueId(req);
+    File file = issueId != null && issueStore.contains(issueId) ? issueStore
+        .getFile(issueId) : null;
+    if (file == null) {
+      resp.setCode(404);
+      resp.close();
+      return;
+    }
+    BlockSignature signature;
+    try {
+      signature = BlockSignature.read(new BufferedInputStream(req
+          .getInputStream()));
+    } catch (IOException ex) {
+      log.warning("Invalid signature for delta: " + ex.getMessage());
+      resp.setCode(400);
+      resp.close();
+      return;
+    }
+
+    // The delta is written while it is computed, its length is not known up
+    // front.
+    long length = file.length();
+    setResponseHeaders(resp, "application/octet-stream");
+    OutputStream responseStream = resp.getOutputStream();
+    if (transferScheduler != null) {
+      responseStream = transferScheduler.schedule(responseStream,
+          Config.TRANSFER_DEFAULT_WEIGHT);
+    }
+    BufferedOutputStream output = new BufferedOutputStream(responseStream);
+    InputStream input = new BufferedInputStream(new FileInputStream(file));
+    try {
+      long deltaBytes = BlockDelta.compute(signature, input, length, output);
+      output.close();
+      Counters.increment("delta.served");
+      Counters.add("delta.bytes", deltaBytes);
+      Counters.add("delta.bytes_saved", length - deltaBytes);
+      log.info("Delta served for issue " + issueId + ": " + deltaBytes
+          + " bytes instead of " + length + ".");
+    } catch (IOException ex) {
+      log.warning("Writing delta aborted: " + ex.getMessage());
+    } finally {
+      input.close();
+      resp.close();
+    }
+  }
+
+  /**
+   * Redirects requests for the issue of a date to the signed URL of that
+   * issue, fetching it from upstream first if it is not in the store yet.
+   * Returns whether the request was served and thus no further handling is
+   * required.
+   */
+  private static boolean handleIssueByDateRequest(Request req, Response resp)
+      throws IOException {
+    String path = req.getPath().getPath();
+    if (!path.startsWith(Config.ISSUE_BY_DATE_PATH)) {
+      return false;
+    }
+    String date = path.substring(Config.ISSUE_BY_DATE_PATH.length());
+    String account = req.getParameter(Config.ACCOUNT_PARAM);
+    if (account == null) {
+      account = sessionPool.getDefaultAccount();
+    }
+    if (issueStore == null
+        || !IssueDates.isWithinDays(date, Config.ISSUE_BY_DATE_MAX_DAYS)
+        || !sessionPool.hasAccount(account)) {
+      resp.setCode(404);
+      resp.close();
+      return true;
+    }
+
+    // Waiting for admission counts against the deadline as well.
+    Deadline deadline = Deadline.after(Config.UPSTREAM_LOOKUP_DEADLINE_MILLIS);
+    Issue issue = issueStore.getIssueForDate(date);
+    if (issue == null) {
+      AdmissionController.Permit permit = admit(resp);
+      if (permit == null) {
+        return true;
+      }
+      boolean success = false;
+      try {
+        Counters.increment("issue_by_date.fetches");
+        SessionPool.Session session = sessionPool.acquire(account);
+        try {
+          issue = session.getTools().getIssueForDate(session.getDirectory(),
+              date, deadline);
+        } finally {
+          session.release();
+        }
+        if (issue != null) {
+          issue = issueStore.store(issue, date);
+        }
+        success = true;
+      } finally {
+        permit.release(success);
+      }
+    }
+    if (issue == null) {
+      log.info("No issue for " + date);
+      resp.setCode(404);
+      resp.close();
+      return true;
+    }
+
+    resp.setCode(302);
+    resp.set("Location", "/" + issue.getFileName() + ".pdf?pdf=true&"
+        + urlSigner.getQuery(issue.getFileName(), urlSigner.getCurrentExpiry()));
+    resp.close();
+    log.info("Redirected to issue of " + date);
+    return true;
+  }
+
+  /**
+   * Returns the ID of the issue requested by a path like "/&lt;id&gt;.pdf", or
+   * <code>null</code> if the path does not point to an issue.
+   */
+  private static String getIssueId(Request req) {
+    // Issue IDs are hex strings, anything else is not an issue of ours.
+    String fileName = req.getPath().getName();
+    if (fileName == null || !fileName.endsWith(".pdf")) {
+      return null;
+    }
+    String issueId = fileName.substring(0, fileName.length() - 4);
+    return issueId.matches("[0-9a-f]+") ? issueId : null;
+  }
+
   private static boolean serveStream(Response resp, InputStream stream,
       String mimeType) throws IOException {
+    return serveStream(resp, stream, mimeType, false);
+  }
+
+  /**
+   * Serves the given stream. Large responses should be scheduled, so that
+   * concurrent downloads share the bandwidth fairly. Small ones bypass the
+   * scheduler.
+   */
+  private static boolean serveStream(Response resp, InputStream stream,
+      String mimeType, boolean scheduled) throws IOException {
     setResponseHeaders(resp, mimeType);
-    BufferedOutputStream output = new BufferedOutputStream(
-        resp.getOutputStream());
+    OutputStream responseStream = resp.getOutputStream();
+    if (scheduled && transferScheduler != null) {
+      responseStream = transferScheduler.schedule(responseStream,
+          Config.TRANSFER_DEFAULT_WEIGHT);
+    }
+    BufferedOutputStream output = new BufferedOutputStream(responseStream);
     BufferedInputStream input = new BufferedInputStream(stream);
+    PhaseEvent event = PhaseEvent.begin("serve").set("type", mimeType)
+        .set("scheduled", scheduled && transferScheduler != null)
+        .set("completed", false);
 
     byte[] buffer = new byte[4096];
     int length;
     try {
       while ((length = input.read(buffer)) != -1) {
         output.write(buffer, 0, length);
+        event.addBytes(length);
       }
       output.flush();
       output.close();
       resp.close();
+      event.set("completed", true);
       return true;
     } catch (IOException ex) {
       log.warning("Writing aborted.");
       resp.close();
+    } finally {
+      // Issues are now served from files in the store, don't leak them.
+      input.close();
+      event.commit();
     }
     return false;
   }
 
+  /**
+   * Sets the content length, which unlike
+   * {@link Response#setContentLength(int)} may exceed 2 GB.
+   */
+  private static void setContentLength(Response resp, long contentLength) {
+    resp.set("Content-Length", String.valueOf(contentLength));
+  }
+
   /**
    * Sets the response headers for web requests to the server.
    */
   private static void setResponseHeaders(Response resp, String mimeType) {
     final long time = System.currentTimeMillis();
     resp.set("Content-Type", mimeType);
-    resp.set("Server", "KaPub/0.1 (Simple 4)");
-    resp.set("Cache-Control", "max-age=0");
-    resp.set("Expires", "-1");
+    resp.set("Server", ResponseCache.SERVER_HEADER);
+    // Don't override caching headers the caller has set.
+    if (!resp.contains("Cache-Control")) {
+      resp.set("Cache-Control", "max-age=0");
+      resp.set("Expires", "-1");
+    }
     resp.setDate("Date", time);
     resp.setDate("Last-Modified", time);
   }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.DigestOutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Fetches issues from a KaPubServer mirror on the local network instead of
+ * logging into the publisher's site.
+ * <p>
+ * The mirror downloads every issue from the publisher once. Clients only fetch
+ * its manifest and download the issues they don't have yet. An issue that
+ * replaces an edition a client has, such as one the publisher corrected, can be
+ * fetched as a delta against that edition.
+ */
+public class MirrorClient implements IssueSource {
+  private static final Logger log = Logger.getLogger(MirrorClient.class
+      .getName());
+
+  private final String baseUrl;
+  private final String authToken;
+
+  /**
+   * @param baseUrl the URL of the mirror, e.g. "http://192.168.0.2:9999".
+   * @param authToken the token the mirror expects from its clients.
+   */
+  public MirrorClient(String baseUrl, String authToken) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0,
+        baseUrl.length() - 1) : baseUrl;
+    this.authToken = authToken;
+  }
+
+  /**
+   * Fetches the manifest of all issues the mirror has available.
+   */
+  public IssueManifest getManifest(Deadline deadline) throws IOException {
+    deadline.check("fetching the manifest");
+    HttpURLConnection urlConn = (HttpURLConnection) new URL(baseUrl
+        + Config.MIRROR_MANIFEST_PATH + "?" + getAuthQuery()).openConnection();
+    deadline.apply(urlConn);
+    try {
+      if (urlConn.getResponseCode() != 200) {
+        throw new IOException("Could not fetch manifest. Status code: "
+            + urlConn.getResponseCode());
+      }
+      InputStream stream = urlConn.getInputStream();
+      try {
+        StringBuilder content = new StringBuilder();
+        InputStreamReader reader = new InputStreamReader(stream, "UTF-8");
+        char[] buffer = new char[1024];
+        int num;
+        while ((num = reader.read(buffer)) != -1) {
+          content.append(buffer, 0, num);
+          deadline.check("reading the manifest");
+        }
+        return IssueManifest.parse(content.toString());
+      } finally {
+        stream.close();
+      }
+    } finally {
+      urlConn.disconnect();
+    }
+  }
+
+  /**
+   * Returns the latest issue available on the mirror.
+   */
+  @Override
+  public Issue getLatestIssue(File cacheDirectory, Deadline deadline)
+      throws IOException {
+    IssueManifest.Entry latest = getManifest(deadline).getLatest();
+    if (latest == null) {
+      log.warning("Mirror does not have any issues yet.");
+      return null;
+    }
+    return getIssue(latest);
+  }
+
+  /**
+   * Returns the issues of the mirror that are not yet available locally.
+   */
+  public List<IssueManifest.Entry> getMissingIssues(Set<String> localIssueIds,
+      Deadline deadline) throws IOException {
+    return getManifest(deadline).getMissing(localIssueIds);
+  }
+
+  /**
+   * Returns an issue that downloads the given manifest entry from the mirror.
+   */
+  public Issue getIssue(IssueManifest.Entry entry) {
+    Issue issue = new Issue(entry.issueId);
+    issue.setDataProvider(new MirrorDataProvider(baseUrl
+        + Config.MIRROR_ISSUE_PATH + entry.issueId + ".pdf?" + getAuthQuery(),
+        entry.hash));
+    return issue;
+  }
+
+  /**
+   * Writes the issue of the given manifest entry to the target file by
+   * patching an older edition of it that is available locally. Only the blocks
+   * that differ are transferred. The target may be the older edition itself.
+   *
+   * @param base the older edition.
+   * @param baseSignature the signature of the older edition, see
+   *          {@link IssueStore#getSignature(String)} or
+   *          {@link BlockSignature#compute(File, int)}.
+   * @throws IOException if the patch could not be fetched or does not give the
+   *           expected issue. The caller should then download it in full.
+   */
+  public void patchIssue(IssueManifest.Entry entry, File base,
+      BlockSignature baseSignature, File target, Deadline deadline)
+      throws IOException {
+    deadline.check("fetching a delta");
+    HttpURLConnection urlConn = (HttpURLConnection) new URL(baseUrl
+        + Config.MIRROR_DELTA_PATH + entry.issueId + ".pdf?" + getAuthQuery())
+        .openConnection();
+    deadline.apply(urlConn);
+    urlConn.setRequestMethod("POST");
+    urlConn.setRequestProperty("Content-Type", "application/octet-stream");
+    urlConn.setDoOutput(true);
+    File tempFile = File.createTempFile(target.getName(), ".tmp", target
+        .getAbsoluteFile().getParentFile());
+    boolean complete = false;
+    try {
+      OutputStream request = new BufferedOutputStream(
+          urlConn.getOutputStream());
+      try {
+        baseSignature.write(request);
+      } finally {
+        request.close();
+      }
+      if (urlConn.getResponseCode() != 200) {
+        throw new IOException("Could not fetch delta. Status code: "
+            + urlConn.getResponseCode());
+      }
+
+      DigestOutputStream output = new DigestOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile)),
+          Digests.sha1());
+      try {
+        InputStream input = new BufferedInputStream(urlConn.getInputStream());
+        RandomAccessFile oldFile = new RandomAccessFile(base, "r");
+        try {
+          BlockDelta.apply(oldFile, input, output);
+        } finally {
+          oldFile.close();
+          input.close();
+        }
+      } finally {
+        output.close();
+      }
+      String hash = Digests.toHex(output.getMessageDigest().digest());
+      if (!hash.equals(entry.hash)) {
+        throw new IOException("Patched issue " + entry.issueId
+            + " does not match its hash.");
+      }
+
+      if (target.exists() && !target.delete() || !tempFile.renameTo(target)) {
+        throw new IOException("Could not move patched issue into place: "
+            + target);
+      }
+      complete = true;
+      log.info("Patched issue " + entry.issueId + " from a delta.");
+    } finally {
+      urlConn.disconnect();
+      if (!complete) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  private String getAuthQuery() {
+    try {
+      return "a=" + URLEncoder.encode(authToken, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
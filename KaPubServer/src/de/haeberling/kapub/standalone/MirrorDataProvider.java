@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.logging.Logger;
+
+import de.haeberling.kapub.standalone.Issue.Data;
+import de.haeberling.kapub.standalone.Issue.DataProvider;
+
+/**
+ * Provides the data of an issue by downloading it from a KaPubServer mirror
+ * instead of the publisher.
+ */
+public class MirrorDataProvider implements DataProvider {
+  private static final Logger log = Logger.getLogger(MirrorDataProvider.class
+      .getName());
+
+  private final String issueUrl;
+  private final String sha1;
+
+  /**
+   * @param issueUrl the full, authenticated URL of the issue on the mirror.
+   * @param sha1 the SHA-1 of the issue from the mirror's manifest.
+   */
+  public MirrorDataProvider(String issueUrl, String sha1) {
+    this.issueUrl = issueUrl;
+    this.sha1 = sha1;
+  }
+
+  @Override
+  public Data getData() {
+    HttpURLConnection urlConn = null;
+    try {
+      log.info("Getting data from mirror: " + issueUrl);
+      urlConn = (HttpURLConnection) new URL(issueUrl).openConnection();
+      // Like downloads from the publisher, only bounded by the timeouts.
+      Deadline.NONE.apply(urlConn);
+      urlConn.setDoInput(true);
+      urlConn.connect();
+      if (urlConn.getResponseCode() != 200) {
+        log.severe("Mirror returned status " + urlConn.getResponseCode());
+        urlConn.disconnect();
+        return null;
+      }
+      String contentLength = urlConn.getHeaderField("Content-Length");
+      return new Data(new ConnectionInputStream(urlConn),
+          contentLength != null ? Long.parseLong(contentLength) : -1, sha1);
+    } catch (IOException ex) {
+      log.severe("Could not create Data object: " + ex.getMessage());
+      if (urlConn != null) {
+        urlConn.disconnect();
+      }
+      return null;
+    }
+  }
+}
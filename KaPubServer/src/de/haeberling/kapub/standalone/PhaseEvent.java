@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A timed event of one phase of fetching or serving an issue, like the login,
+ * the overview scrape, the download or serving a client.
+ * <p>
+ * Usage is <code>begin()</code>, then setting fields, then
+ * <code>commit()</code>. Committed events add up to the phase counters
+ * (<code>phase.&lt;type&gt;.count</code>, <code>.millis</code>,
+ * <code>.bytes</code>) and are kept in a small in-memory recording of the most
+ * recent events, which the server exports. With the logger of this class at
+ * FINE, every event is logged as well, which is cheap enough to leave on in
+ * production.
+ */
+public class PhaseEvent {
+  private static final Logger log = Logger
+      .getLogger(PhaseEvent.class.getName());
+  private static final int RECORDING_SIZE = 256;
+
+  // The recording is a ring buffer of formatted events, guarded by itself.
+  private static final String[] recording = new String[RECORDING_SIZE];
+  private static int recordingNext = 0;
+
+  private final String type;
+  private final long startMillis;
+  private final long startNanos;
+  private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+  private long bytes = 0;
+  private boolean committed = false;
+
+  private PhaseEvent(String type) {
+    this.type = type;
+    this.startMillis = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Starts timing an event of the given type.
+   */
+  public static PhaseEvent begin(String type) {
+    return new PhaseEvent(type);
+  }
+
+  /**
+   * Sets a field of this event, e.g. whether a session was reused.
+   */
+  public PhaseEvent set(String name, Object value) {
+    fields.put(name, value);
+    return this;
+  }
+
+  /**
+   * Adds to the number of bytes transferred in this phase.
+   */
+  public PhaseEvent addBytes(long count) {
+    bytes += count;
+    return this;
+  }
+
+  /**
+   * Returns the milliseconds since this event began.
+   */
+  public long getElapsedMillis() {
+    return (System.nanoTime() - startNanos) / 1000000;
+  }
+
+  /**
+   * Ends this event and records it. Further calls are ignored, so this can
+   * safely be called from a finally block as well.
+   */
+  public void commit() {
+    if (committed) {
+      return;
+    }
+    committed = true;
+    long durationMillis = getElapsedMillis();
+    Counters.increment("phase." + type + ".count");
+    Counters.add("phase." + type + ".millis", durationMillis);
+    if (bytes > 0) {
+      Counters.add("phase." + type + ".bytes", bytes);
+    }
+
+    StringBuilder text = new StringBuilder();
+    text.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US)
+        .format(new Date(startMillis)));
+    text.append(' ').append(type);
+    text.append(" duration_ms=").append(durationMillis);
+    text.append(" bytes=").append(bytes);
+    text.append(" thread=").append(Thread.currentThread().getName());
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      text.append(' ').append(field.getKey()).append('=')
+          .append(field.getValue());
+    }
+    String event = text.toString();
+    synchronized (recording) {
+      recording[recordingNext] = event;
+      recordingNext = (recordingNext + 1) % RECORDING_SIZE;
+    }
+    if (log.isLoggable(Level.FINE)) {
+      log.fine(event);
+    }
+  }
+
+  /**
+   * Returns the recorded events, oldest first and one per line.
+   */
+  public static String formatRecording() {
+    StringBuilder text = new StringBuilder();
+    synchronized (recording) {
+      for (int i = 0; i < RECORDING_SIZE; ++i) {
+        String event = recording[(recordingNext + i) % RECORDING_SIZE];
+        if (event != null) {
+          text.append(event).append('\n');
+        }
+      }
+    }
+    return text.toString();
+  }
+}
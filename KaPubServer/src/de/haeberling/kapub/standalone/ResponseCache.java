@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * Keeps the small, mostly static responses of the server in memory.
+ * <p>
+ * Static assets are loaded once at startup, together with their length and
+ * ETag. The index page is pre-rendered into fixed parts, so that serving it
+ * only means writing those parts plus the issue file name and signed query.
+ */
+public class ResponseCache {
+  private static final Logger log = Logger.getLogger(ResponseCache.class
+      .getName());
+  private static final String ENCODING = "ISO-8859-1";
+
+  /** A fully rendered response. */
+  public static class CachedResponse {
+    private final byte[] body;
+    private final String mimeType;
+    private final String etag;
+    private final String cacheControl;
+    private final long lastModified;
+
+    CachedResponse(byte[] body, String mimeType, String cacheControl) {
+      this.body = body;
+      this.mimeType = mimeType;
+      this.cacheControl = cacheControl;
+      this.etag = "\"" + Digests.toHex(Digests.sha1().digest(body)) + "\"";
+      this.lastModified = System.currentTimeMillis();
+    }
+
+    /**
+     * Serves this response, or just a 304 if the client already has it.
+     */
+    public void serve(Request req, Response resp) throws IOException {
+      resp.set("Server", SERVER_HEADER);
+      resp.set("ETag", etag);
+      resp.set("Cache-Control", cacheControl);
+      resp.setDate("Date", System.currentTimeMillis());
+      resp.setDate("Last-Modified", lastModified);
+      if (etag.equals(req.getValue("If-None-Match"))) {
+        resp.setCode(304);
+        resp.setText("Not Modified");
+        resp.close();
+        return;
+      }
+      resp.set("Content-Type", mimeType);
+      resp.setContentLength(body.length);
+      OutputStream output = resp.getOutputStream(body.length);
+      output.write(body);
+      output.close();
+    }
+  }
+
+  /** The value of the Server header. */
+  static final String SERVER_HEADER = "KaPub/0.1 (Simple 4)";
+
+  private final Map<String, CachedResponse> assets = new HashMap<String, CachedResponse>();
+
+  // The parts of the index page, which only needs the issue file name and the
+  // signed query filled in.
+  private final byte[] indexPrefix;
+  private final byte[] indexMiddle;
+  private final byte[] indexSuffix;
+  private final byte[] errorPage;
+
+  public ResponseCache() {
+    try {
+      indexPrefix = ("<html><head><title>Kreis-Anzeiger</title>\n"
+          + "<link rel=\"apple-touch-icon\" href=\"/icon57.png\"/>\n"
+          + "<meta http-equiv=\"refresh\" content=\"0;url=").getBytes(ENCODING);
+      indexMiddle = ".pdf?pdf=true&".getBytes(ENCODING);
+      indexSuffix = ("\"></head><body>\n"
+          + "<style>body {font-family:Arial;font-size:4em}</style>\n"
+          + "Ausgabe wird geladen ... \n" + "</body></html>\n")
+          .getBytes(ENCODING);
+      errorPage = ("<html><head><title>Kreis-Anzeiger</title>\n"
+          + "<link rel=\"apple-touch-icon\" href=\"/icon57.png\"/>\n"
+          + "<style>body {font-family:Arial;font-size:4em}</style>\n"
+          + "Es ist ein Fehler aufgetreten. Bitte Sascha bescheid geben ;)\n"
+          + "</body></html>\n").getBytes(ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Loads the resource with the given name and serves it under the given path
+   * from now on.
+   */
+  public void addAsset(String path, String resourceName, String mimeType)
+      throws IOException {
+    InputStream stream = ResponseCache.class.getResourceAsStream(resourceName);
+    if (stream == null) {
+      throw new IOException("Resource not found: " + resourceName);
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[4096];
+      int length;
+      while ((length = stream.read(buffer)) != -1) {
+        body.write(buffer, 0, length);
+      }
+    } finally {
+      stream.close();
+    }
+    assets.put(path, new CachedResponse(body.toByteArray(), mimeType,
+        "public, max-age=" + Config.STATIC_ASSET_MAX_AGE_SECONDS));
+    log.info("Cached asset " + path + " (" + body.size() + " bytes)");
+  }
+
+  /**
+   * Returns the cached asset for the given path or <code>null</code> if there
+   * is none.
+   */
+  public CachedResponse getAsset(String path) {
+    return assets.get(path);
+  }
+
+  /**
+   * Serves the index page that redirects to the given issue using the given
+   * signed query, or the error page if there is no issue.
+   */
+  public void serveIndexPage(Response resp, Issue issue, String signedQuery)
+      throws IOException {
+    byte[] fileName = null;
+    byte[] token = null;
+    int length = errorPage.length;
+    if (issue != null) {
+      fileName = issue.getFileName().getBytes(ENCODING);
+      token = signedQuery.getBytes(ENCODING);
+      length = indexPrefix.length + fileName.length + indexMiddle.length
+          + token.length + indexSuffix.length;
+    }
+    resp.setContentLength(length);
+    OutputStream output = resp.getOutputStream(length);
+    if (issue != null) {
+      output.write(indexPrefix);
+      output.write(fileName);
+      output.write(indexMiddle);
+      output.write(token);
+      output.write(indexSuffix);
+    } else {
+      output.write(errorPage);
+    }
+    output.close();
+  }
+}
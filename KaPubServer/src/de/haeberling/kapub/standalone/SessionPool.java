@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The upstream sessions of the subscriber accounts this server fetches with.
+ * <p>
+ * The accounts are read from a local secret file with one
+ * "&lt;name&gt; &lt;username&gt; &lt;password&gt;" line per account. Every
+ * account keeps its session in its own directory, so fetches of different
+ * accounts run in parallel without touching each other's cookies. The number
+ * of sessions is bounded; sessions that were not used for a while are
+ * evicted from memory. Their cookies stay on disk for the next use.
+ * <p>
+ * Without a secret file, there is a single default account without login
+ * data that keeps its session directly in the data directory, as before.
+ */
+public class SessionPool {
+  private static final Logger log = Logger.getLogger(SessionPool.class
+      .getName());
+
+  /** The account used when a request does not name one. */
+  public static final String DEFAULT_ACCOUNT = "default";
+
+  /** The session of one account. Must be released after use. */
+  public class Session {
+    private final String account;
+    private final File directory;
+    private final KaPubTools tools;
+    // Both guarded by the pool.
+    private int users = 0;
+    private long lastUsed;
+
+    private Session(String account, File directory, LoginData loginData) {
+      this.account = account;
+      this.directory = directory;
+      this.tools = new KaPubTools(loginData);
+    }
+
+    public String getAccount() {
+      return account;
+    }
+
+    /** The directory the session's cookies are kept in. */
+    public File getDirectory() {
+      return directory;
+    }
+
+    /** Fetches issues using this account. */
+    public KaPubTools getTools() {
+      return tools;
+    }
+
+    /** Returns the session to the pool. */
+    public void release() {
+      synchronized (SessionPool.this) {
+        --users;
+        lastUsed = System.currentTimeMillis();
+      }
+    }
+  }
+
+  private final File dataDirectory;
+  private final Map<String, LoginData> accounts;
+  private final int maxSessions;
+  private final long idleMillis;
+  // Guarded by 'this'. In order of last use.
+  private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>(
+      16, 0.75f, true);
+
+  /**
+   * @param dataDirectory where the secret file and the sessions are kept.
+   * @param maxSessions how many sessions may be open at the same time.
+   * @param idleMillis after how long without use a session is evicted.
+   */
+  public SessionPool(File dataDirectory, int maxSessions, long idleMillis)
+      throws IOException {
+    this.dataDirectory = dataDirectory;
+    this.maxSessions = maxSessions;
+    this.idleMillis = idleMillis;
+    this.accounts = loadAccounts(new File(dataDirectory, Config.ACCOUNTS_FILE));
+    log.info("Loaded " + accounts.size() + " account(s).");
+  }
+
+  /**
+   * Returns the name of the first account, which serves requests that don't
+   * name one.
+   */
+  public String getDefaultAccount() {
+    return accounts.isEmpty() ? DEFAULT_ACCOUNT : accounts.keySet().iterator()
+        .next();
+  }
+
+  /**
+   * Returns whether there is an account of the given name.
+   */
+  public boolean hasAccount(String account) {
+    return accounts.isEmpty() ? DEFAULT_ACCOUNT.equals(account) : accounts
+        .containsKey(account);
+  }
+
+  /**
+   * Returns the session of the given account, opening it if necessary.
+   *
+   * @throws IOException if there is no such account or the pool is full of
+   *           sessions that are in use.
+   */
+  public synchronized Session acquire(String account) throws IOException {
+    evictIdle();
+    Session session = sessions.get(account);
+    if (session == null) {
+      if (!hasAccount(account)) {
+        throw new IOException("Unknown account: " + account);
+      }
+      if (sessions.size() >= maxSessions && !evictLeastRecentlyUsed()) {
+        Counters.increment("sessions.rejected");
+        throw new IOException("All " + maxSessions + " sessions are in use.");
+      }
+      session = new Session(account, getDirectory(account),
+          accounts.get(account));
+      sessions.put(account, session);
+      Counters.increment("sessions.opened");
+    }
+    ++session.users;
+    Counters.set("sessions.open", sessions.size());
+    return session;
+  }
+
+  private File getDirectory(String account) {
+    if (accounts.isEmpty()) {
+      return dataDirectory;
+    }
+    return new File(new File(dataDirectory, Config.ACCOUNTS_DIR), account);
+  }
+
+  private void evictIdle() {
+    long now = System.currentTimeMillis();
+    Iterator<Session> iterator = sessions.values().iterator();
+    while (iterator.hasNext()) {
+      Session session = iterator.next();
+      if (session.users == 0 && now - session.lastUsed >= idleMillis) {
+        iterator.remove();
+        evict(session);
+      }
+    }
+  }
+
+  /**
+   * Evicts the least recently used session that is not in use. Returns
+   * whether there was one.
+   */
+  private boolean evictLeastRecentlyUsed() {
+    Iterator<Session> iterator = sessions.values().iterator();
+    while (iterator.hasNext()) {
+      Session session = iterator.next();
+      if (session.users == 0) {
+        iterator.remove();
+        evict(session);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void evict(Session session) {
+    log.info("Evicting session of " + session.account);
+    Counters.increment("sessions.evicted");
+    // Only the store in memory goes. The cookies file is the session a warm
+    // start restores, and in the default account's directory it is shared
+    // with the other nodes.
+    CookieStore.remove(session.directory);
+  }
+
+  /**
+   * Reads the accounts from the secret file. Returns no accounts if there is
+   * no such file.
+   */
+  private static Map<String, LoginData> loadAccounts(File file)
+      throws IOException {
+    Map<String, LoginData> accounts = new LinkedHashMap<String, LoginData>();
+    if (!file.exists()) {
+      return accounts;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\s+", 3);
+        // The name ends up in a path, so keep it harmless.
+        if (fields.length != 3 || !fields[0].matches("[A-Za-z0-9_-]+")) {
+          throw new IOException("Invalid line in " + file);
+        }
+        accounts.put(fields[0], new LoginData(fields[1], fields[2]));
+      }
+    } finally {
+      reader.close();
+    }
+    return accounts;
+  }
+}
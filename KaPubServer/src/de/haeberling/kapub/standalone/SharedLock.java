@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lock shared by all threads of this process and all processes that use the
+ * same lock file, e.g. several servers on a shared directory.
+ * <p>
+ * File locks are held per process, so the threads of this process first take
+ * turns on a local semaphore. If the process holding the lock dies, the
+ * operating system releases it.
+ */
+public class SharedLock {
+  private static final long POLL_MILLIS = 250;
+
+  /** A held lock. */
+  public class Lease {
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private Lease(RandomAccessFile lockFile, FileLock lock) {
+      this.lockFile = lockFile;
+      this.lock = lock;
+    }
+
+    /** Releases the lock. */
+    public void release() {
+      try {
+        lock.release();
+        lockFile.close();
+      } catch (IOException ex) {
+        // Closing the file releases the lock in any case.
+      } finally {
+        local.release();
+      }
+    }
+  }
+
+  private final File file;
+  private final Semaphore local = new Semaphore(1);
+
+  public SharedLock(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Waits for the lock for at most the given time and returns it. Throws if it
+   * could not be acquired in time.
+   */
+  public Lease acquire(long timeoutMillis) throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    try {
+      if (!local.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new IOException("Timed out waiting for lock " + file);
+      }
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Interrupted waiting for lock " + file);
+    }
+
+    RandomAccessFile lockFile = null;
+    Lease lease = null;
+    try {
+      lockFile = new RandomAccessFile(file, "rw");
+      while (true) {
+        FileLock lock = lockFile.getChannel().tryLock();
+        if (lock != null) {
+          lease = new Lease(lockFile, lock);
+          return lease;
+        }
+        if (System.currentTimeMillis() >= deadline) {
+          throw new IOException("Timed out waiting for lock " + file);
+        }
+        Thread.sleep(POLL_MILLIS);
+      }
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Interrupted waiting for lock " + file);
+    } finally {
+      if (lease == null) {
+        if (lockFile != null) {
+          lockFile.close();
+        }
+        local.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+/**
+ * Shares a total bandwidth budget fairly between concurrent downloads.
+ * <p>
+ * Every download writes through a {@link ScheduledOutputStream}, which asks the
+ * scheduler for permission before writing a chunk. A single dispatcher thread
+ * hands out these grants in weighted round-robin order to all downloads that
+ * are currently waiting, and takes the bytes from a token bucket that refills
+ * at the configured rate. The size of a grant is proportional to the weight of
+ * the download. A client whose socket is slow simply isn't waiting
+ * while it is blocked in a write, so its share goes to the others and no one
+ * can take more than their share.
+ */
+public class TransferScheduler {
+  private static final Logger log = Logger.getLogger(TransferScheduler.class
+      .getName());
+
+  /** A single download registered with the scheduler. */
+  private static class Transfer {
+    final int weight;
+    // Guarded by the scheduler's queue.
+    int requested = 0;
+    int granted = 0;
+
+    Transfer(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  private static final int MAX_WEIGHT = 8;
+
+  private final long bytesPerSecond;
+  private final int chunkSize;
+  private final long bucketCapacity;
+  private final LinkedList<Transfer> waiting = new LinkedList<Transfer>();
+
+  // Only used by the dispatcher thread.
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * @param bytesPerSecond the total bandwidth shared by all downloads.
+   * @param chunkSize how many bytes a download of weight 1 may write per turn.
+   */
+  public TransferScheduler(long bytesPerSecond, int chunkSize) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.chunkSize = chunkSize;
+    // Allow short bursts of a quarter second, but at least one grant of the
+    // heaviest weight we expect.
+    this.bucketCapacity = Math.max(bytesPerSecond / 4, chunkSize
+        * MAX_WEIGHT);
+    this.tokens = bucketCapacity;
+    this.lastRefill = System.nanoTime();
+
+    Thread dispatcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        dispatch();
+      }
+    }, "TransferScheduler");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+    log.info("Transfer scheduler started with " + bytesPerSecond
+        + " bytes/s.");
+  }
+
+  /**
+   * Returns a stream that writes to the given output, sharing the bandwidth
+   * with all other scheduled streams according to the given weight.
+   */
+  public OutputStream schedule(OutputStream output, int weight) {
+    return new ScheduledOutputStream(output, new Transfer(Math.max(1,
+        Math.min(weight, MAX_WEIGHT))));
+  }
+
+  /**
+   * Blocks until it is the given transfer's turn and returns how many bytes it
+   * may write.
+   */
+  private int acquire(Transfer transfer) throws InterruptedIOException {
+    synchronized (waiting) {
+      transfer.requested = chunkSize * transfer.weight;
+      transfer.granted = 0;
+      waiting.addLast(transfer);
+      waiting.notifyAll();
+      while (transfer.granted == 0) {
+        try {
+          waiting.wait();
+        } catch (InterruptedException ex) {
+          waiting.remove(transfer);
+          throw new InterruptedIOException("Interrupted while waiting to send.");
+        }
+      }
+      return transfer.granted;
+    }
+  }
+
+  /**
+   * The dispatcher loop. Serves the waiting transfers in the order they asked,
+   * which is round-robin as every transfer re-queues at the end after its turn.
+   */
+  private void dispatch() {
+    while (true) {
+      Transfer transfer;
+      synchronized (waiting) {
+        while (waiting.isEmpty()) {
+          try {
+            waiting.wait();
+          } catch (InterruptedException ex) {
+            return;
+          }
+        }
+        transfer = waiting.getFirst();
+      }
+
+      waitForTokens(transfer.requested);
+
+      synchronized (waiting) {
+        // The transfer might have been interrupted in the meantime.
+        if (waiting.remove(transfer)) {
+          tokens -= transfer.requested;
+          transfer.granted = transfer.requested;
+          waiting.notifyAll();
+        }
+      }
+    }
+  }
+
+  private void waitForTokens(int bytes) {
+    while (true) {
+      long now = System.nanoTime();
+      tokens = Math.min(bucketCapacity, tokens + (now - lastRefill)
+          * bytesPerSecond / 1e9);
+      lastRefill = now;
+      if (tokens >= bytes) {
+        return;
+      }
+      long waitMillis = (long) Math.ceil((bytes - tokens) * 1000.0
+          / bytesPerSecond);
+      try {
+        Thread.sleep(Math.max(1, waitMillis));
+      } catch (InterruptedException ex) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes to the underlying stream in chunks granted by the scheduler.
+   */
+  private class ScheduledOutputStream extends FilterOutputStream {
+    private final Transfer transfer;
+    /** How many bytes are left of the last grant. */
+    private int allowance = 0;
+
+    ScheduledOutputStream(OutputStream output, Transfer transfer) {
+      super(output);
+      this.transfer = transfer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (allowance == 0) {
+          allowance = acquire(transfer);
+        }
+        int toWrite = Math.min(length, allowance);
+        out.write(buffer, offset, toWrite);
+        allowance -= toWrite;
+        offset += toWrite;
+        length -= toWrite;
+      }
+    }
+  }
+}
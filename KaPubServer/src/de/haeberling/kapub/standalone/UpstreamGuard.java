@@ -0,0 +1,354 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Makes calls to the publisher's site more resilient.
+ * <p>
+ * Failed attempts are retried with exponential backoff and full jitter. If the
+ * upstream keeps failing, a circuit breaker opens and calls fail fast until it
+ * is time to try again. Idempotent calls can be hedged: if the first attempt
+ * takes longer than the recent 95th percentile latency, a duplicate is sent
+ * and whichever answers first wins.
+ * <p>
+ * All decisions are exported as {@link Counters} prefixed with
+ * <code>upstream.&lt;name&gt;.</code>.
+ */
+public class UpstreamGuard {
+  private static final Logger log = Logger.getLogger(UpstreamGuard.class
+      .getName());
+
+  /** Guards the login requests. Logging in is not idempotent, no hedging. */
+  public static final UpstreamGuard LOGIN = new UpstreamGuard("login", false);
+
+  /** Guards the overview scrape, which is safe to hedge. */
+  public static final UpstreamGuard OVERVIEW = new UpstreamGuard("overview",
+      true);
+
+  /**
+   * A single attempt of an upstream call. A new attempt is created for every
+   * retry and hedge.
+   */
+  public interface Attempt<T> {
+    /** Executes the attempt. IOExceptions are considered transient. */
+    public T execute() throws IOException;
+
+    /** Aborts the attempt if it is still running. */
+    public void abort();
+  }
+
+  /** Creates the attempts of an upstream call. */
+  public interface AttemptFactory<T> {
+    public Attempt<T> create();
+
+    /**
+     * Returns whether the caller gave up on the call, e.g. because it timed out
+     * or was cancelled. Attempts fail after that without upstream's fault.
+     */
+    public boolean isCancelled();
+  }
+
+  /** Runs hedged attempts. */
+  private static final ExecutorService hedgeExecutor = Executors
+      .newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "UpstreamGuard-Hedge");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  private static final Random random = new Random();
+
+  private final String name;
+  private final boolean hedge;
+  private final LatencyTracker latencies = new LatencyTracker(
+      Config.UPSTREAM_LATENCY_SAMPLES);
+
+  // Circuit breaker state, guarded by 'this'.
+  private int consecutiveFailures = 0;
+  private long openUntil = 0;
+  private boolean trialRunning = false;
+
+  UpstreamGuard(String name, boolean hedge) {
+    this.name = name;
+    this.hedge = hedge;
+  }
+
+  /**
+   * Executes the call created by the given factory, applying retries, hedging
+   * and the circuit breaker. No attempt is started and no backoff lasts beyond
+   * the deadline. The attempts themselves are expected to abort at the
+   * deadline.
+   *
+   * @throws IOException if all attempts failed, the circuit is open, the
+   *           deadline expired or the call was cancelled or interrupted.
+   */
+  public <T> T call(AttemptFactory<T> factory, Deadline deadline)
+      throws IOException {
+    IOException lastFailure = null;
+    for (int attempt = 0; attempt < Config.UPSTREAM_MAX_ATTEMPTS; ++attempt) {
+      if (attempt > 0) {
+        count("retries");
+        sleep(Math.min(getBackoffMillis(attempt), deadline.getRemainingMillis()));
+      }
+      // Check before the circuit so we never take its trial without using it.
+      deadline.check("upstream " + name + " attempt " + (attempt + 1));
+      if (factory.isCancelled()) {
+        throw new InterruptedIOException("Upstream " + name
+            + " call cancelled.");
+      }
+      if (!allowRequest()) {
+        count("circuit_rejected");
+        throw lastFailure != null ? lastFailure : new IOException("Circuit for "
+            + name + " is open.");
+      }
+
+      long start = System.currentTimeMillis();
+      try {
+        count("attempts");
+        T result = hedge ? executeHedged(factory) : factory.create().execute();
+        latencies.add(System.currentTimeMillis() - start);
+        onSuccess();
+        return result;
+      } catch (IOException ex) {
+        if (Thread.currentThread().isInterrupted() || deadline.isExpired()
+            || factory.isCancelled()) {
+          // The caller gave up, which says nothing about the upstream. Neither
+          // count it nor retry, the retry would only be aborted as well.
+          log.info("Upstream " + name + " attempt " + (attempt + 1)
+              + " abandoned: " + ex.getMessage());
+          count("abandoned");
+          onAbandoned();
+          throw ex;
+        }
+        log.warning("Upstream " + name + " attempt " + (attempt + 1)
+            + " failed: " + ex.getMessage());
+        lastFailure = ex;
+        onFailure();
+      } catch (RuntimeException ex) {
+        // A bug rather than a transient failure, so it is not retried. It
+        // still has to end a running trial, or the circuit stays open.
+        log.warning("Upstream " + name + " attempt " + (attempt + 1)
+            + " failed: " + ex);
+        onFailure();
+        throw ex;
+      }
+    }
+    throw lastFailure;
+  }
+
+  /**
+   * Returns the delay after which a hedged request is sent.
+   */
+  long getHedgeDelayMillis() {
+    long p95 = latencies.getPercentile(95);
+    if (p95 < 0) {
+      return Config.HEDGE_DEFAULT_DELAY_MILLIS;
+    }
+    return Math.max(Config.HEDGE_MIN_DELAY_MILLIS, p95);
+  }
+
+  private <T> T executeHedged(AttemptFactory<T> factory) throws IOException {
+    CompletionService<T> completion = new ExecutorCompletionService<T>(
+        hedgeExecutor);
+    Attempt<T> primary = factory.create();
+    Attempt<T> secondary = null;
+    Future<T> secondaryFuture = null;
+    completion.submit(toCallable(primary));
+    try {
+      int pending = 1;
+      Future<T> done = completion.poll(getHedgeDelayMillis(),
+          TimeUnit.MILLISECONDS);
+      if (done == null) {
+        count("hedges");
+        secondary = factory.create();
+        secondaryFuture = completion.submit(toCallable(secondary));
+        ++pending;
+      }
+
+      IOException failure = null;
+      while (pending > 0) {
+        if (done == null) {
+          done = completion.take();
+        }
+        --pending;
+        try {
+          T result = getResult(done);
+          if (done == secondaryFuture) {
+            count("hedge_wins");
+          }
+          return result;
+        } catch (IOException ex) {
+          failure = ex;
+        }
+        done = null;
+      }
+      throw failure;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for "
+          + name);
+    } finally {
+      // Whichever attempt lost is not needed anymore.
+      primary.abort();
+      if (secondary != null) {
+        secondary.abort();
+      }
+    }
+  }
+
+  private synchronized boolean allowRequest() {
+    if (consecutiveFailures < Config.CIRCUIT_FAILURE_THRESHOLD) {
+      return true;
+    }
+    // The circuit is open. Once the open period is over, let a single trial
+    // request through to see whether the upstream has recovered.
+    if (System.currentTimeMillis() < openUntil || trialRunning) {
+      return false;
+    }
+    trialRunning = true;
+    count("circuit_trials");
+    return true;
+  }
+
+  private synchronized void onSuccess() {
+    if (consecutiveFailures >= Config.CIRCUIT_FAILURE_THRESHOLD) {
+      log.info("Circuit for " + name + " closed again.");
+      count("circuit_closed");
+    }
+    consecutiveFailures = 0;
+    trialRunning = false;
+    count("successes");
+  }
+
+  private synchronized void onFailure() {
+    count("failures");
+    ++consecutiveFailures;
+    if (consecutiveFailures >= Config.CIRCUIT_FAILURE_THRESHOLD) {
+      if (trialRunning
+          || consecutiveFailures == Config.CIRCUIT_FAILURE_THRESHOLD) {
+        log.warning("Circuit for " + name + " opened.");
+        count("circuit_opened");
+      }
+      openUntil = System.currentTimeMillis() + Config.CIRCUIT_OPEN_MILLIS;
+      trialRunning = false;
+    }
+  }
+
+  /**
+   * Called when an attempt was abandoned by its caller. If it was the trial,
+   * the next call may try again.
+   */
+  private synchronized void onAbandoned() {
+    trialRunning = false;
+  }
+
+  private void count(String counter) {
+    Counters.increment("upstream." + name + "." + counter);
+  }
+
+  /**
+   * Exponential backoff with full jitter: a random delay between zero and the
+   * exponentially growing, capped backoff.
+   */
+  private static long getBackoffMillis(int attempt) {
+    long backoff = Math.min(Config.UPSTREAM_BACKOFF_MAX_MILLIS,
+        Config.UPSTREAM_BACKOFF_BASE_MILLIS << Math.min(attempt, 20));
+    synchronized (random) {
+      return (long) (random.nextDouble() * backoff);
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted during backoff.");
+    }
+  }
+
+  private static <T> Callable<T> toCallable(final Attempt<T> attempt) {
+    return new Callable<T>() {
+      @Override
+      public T call() throws IOException {
+        return attempt.execute();
+      }
+    };
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException,
+      InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException("Upstream attempt failed: " + ex.getCause());
+    }
+  }
+
+  /**
+   * Keeps the latencies of the most recent successful calls.
+   */
+  static class LatencyTracker {
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+
+    LatencyTracker(int size) {
+      samples = new long[size];
+    }
+
+    synchronized void add(long latencyMillis) {
+      samples[next] = latencyMillis;
+      next = (next + 1) % samples.length;
+      count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Returns the given percentile of the recorded latencies, or -1 if there
+     * are not enough samples yet for it to be meaningful.
+     */
+    synchronized long getPercentile(int percentile) {
+      if (count < Config.UPSTREAM_MIN_LATENCY_SAMPLES) {
+        return -1;
+      }
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+      return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Creates and validates signed, expiring issue URLs.
+ * <p>
+ * The query of a signed URL is <code>e=&lt;expiry&gt;&s=&lt;signature&gt;</code>
+ * where the expiry is in seconds since the epoch and the signature is the
+ * HMAC-SHA256 of the issue ID and the expiry. Expiries are aligned to the end
+ * of fixed windows, so all clients within a window get the same URL and a
+ * reverse proxy in front of the server can cache it.
+ */
+public class UrlSigner {
+  private static final Logger log = Logger.getLogger(UrlSigner.class
+      .getName());
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final int SECRET_LENGTH = 32;
+
+  /** The query parameter holding the expiry. */
+  public static final String EXPIRY_PARAM = "e";
+  /** The query parameter holding the signature. */
+  public static final String SIGNATURE_PARAM = "s";
+
+  private final SecretKeySpec key;
+  private final long ttlSeconds;
+
+  /**
+   * Returns a signer using the secret stored in the given file. If the file
+   * does not exist yet, a new random secret is created and stored in it.
+   */
+  public static UrlSigner create(File secretFile, long ttlSeconds)
+      throws IOException {
+    byte[] secret = new byte[SECRET_LENGTH];
+    if (!secretFile.exists()) {
+      log.info("Creating new URL signing secret.");
+      new SecureRandom().nextBytes(secret);
+      secretFile.getAbsoluteFile().getParentFile().mkdirs();
+      AtomicFiles.write(secretFile, secret);
+    }
+    // Always use what is on disk, in case another node sharing the directory
+    // created the secret at the same time.
+    InputStream input = new FileInputStream(secretFile);
+    try {
+      int read = 0;
+      while (read < secret.length) {
+        int num = input.read(secret, read, secret.length - read);
+        if (num < 0) {
+          throw new IOException("URL signing secret is too short.");
+        }
+        read += num;
+      }
+    } finally {
+      input.close();
+    }
+    return new UrlSigner(secret, ttlSeconds);
+  }
+
+  UrlSigner(byte[] secret, long ttlSeconds) {
+    this.key = new SecretKeySpec(secret, ALGORITHM);
+    this.ttlSeconds = ttlSeconds;
+  }
+
+  /**
+   * Returns the expiry, in seconds since the epoch, of URLs signed now.
+   */
+  public long getCurrentExpiry() {
+    long now = System.currentTimeMillis() / 1000;
+    // At least a full TTL, ending at the next window boundary.
+    return ((now + ttlSeconds) / ttlSeconds + 1) * ttlSeconds;
+  }
+
+  /**
+   * Returns the signed query for the given issue, valid until the given
+   * expiry.
+   */
+  public String getQuery(String issueId, long expiry) {
+    return EXPIRY_PARAM + "=" + expiry + "&" + SIGNATURE_PARAM + "="
+        + Digests.toHex(sign(issueId, expiry));
+  }
+
+  /**
+   * Returns the expiry of the given signed parameters in seconds since the
+   * epoch, or -1 if the signature is invalid or expired.
+   */
+  public long verify(String issueId, String expiryParam, String signatureParam) {
+    if (issueId == null || expiryParam == null || signatureParam == null) {
+      return -1;
+    }
+    long expiry;
+    try {
+      expiry = Long.parseLong(expiryParam);
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+    if (expiry * 1000 < System.currentTimeMillis()) {
+      return -1;
+    }
+    byte[] expected = Digests.toHex(sign(issueId, expiry)).getBytes();
+    // Compare in constant time, so the signature can't be guessed bytewise.
+    if (!MessageDigest.isEqual(expected, signatureParam.getBytes())) {
+      return -1;
+    }
+    return expiry;
+  }
+
+  private byte[] sign(String issueId, long expiry) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      return mac.doFinal((issueId + ":" + expiry).getBytes("UTF-8"));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not sign URL.", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import de.haeberling.kapub.standalone.Issue.Data;
+
+/**
+ * Counts and hashes the bytes of an issue while they are read, and verifies
+ * them against the expected length and hash once the stream ends.
+ * <p>
+ * A transfer that ends early, runs long or has the wrong hash makes the final
+ * read throw an {@link IOException} instead of signaling the end of the
+ * stream. Whoever copies the stream into a file thus gets the same error as for
+ * a broken connection and must not keep the file.
+ */
+public class VerifyingInputStream extends FilterInputStream {
+  private final long expectedLength;
+  private final String expectedHash;
+  private final MessageDigest digest = Digests.sha1();
+  private long length = 0;
+  private String hash = null;
+
+  /**
+   * Verifies the stream of the given data against its content length and
+   * hash, as far as they are known.
+   */
+  public VerifyingInputStream(Data data) {
+    this(data.stream, data.contentLength, data.sha1);
+  }
+
+  /**
+   * @param expectedLength the expected number of bytes, or -1 if unknown.
+   * @param expectedHash the expected SHA-1 as hex, or <code>null</code> if
+   *          unknown.
+   */
+  public VerifyingInputStream(InputStream input, long expectedLength,
+      String expectedHash) {
+    super(input);
+    this.expectedLength = expectedLength;
+    this.expectedHash = expectedHash;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int num = read(buffer, 0, 1);
+    return num == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int count) throws IOException {
+    int num = in.read(buffer, offset, count);
+    if (num == -1) {
+      verify();
+      return -1;
+    }
+    digest.update(buffer, offset, num);
+    length += num;
+    if (expectedLength >= 0 && length > expectedLength) {
+      throw new IOException("Received more than the expected " + expectedLength
+          + " bytes.");
+    }
+    return num;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    // Skipped bytes could not be hashed.
+    throw new IOException("Skipping is not supported.");
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /** Returns how many bytes have been read so far. */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Returns the SHA-1 of the stream as hex, once the stream has been read
+   * completely.
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  private void verify() throws IOException {
+    if (hash == null) {
+      hash = Digests.toHex(digest.digest());
+    }
+    if (expectedLength >= 0 && length != expectedLength) {
+      throw new IOException("Transfer truncated: received " + length + " of "
+          + expectedLength + " bytes.");
+    }
+    if (expectedHash != null && !expectedHash.equals(hash)) {
+      throw new IOException("Transfer corrupted: SHA-1 is " + hash
+          + " instead of " + expectedHash + ".");
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone.soak;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+import org.simpleframework.transport.connect.Connection;
+import org.simpleframework.transport.connect.SocketConnection;
+
+/**
+ * A stand-in for the publisher's site: a login page handing out session
+ * cookies, an overview page linking the current issue and the issue PDFs. A
+ * new issue is published every now and then, so the server keeps going
+ * through all of its paths.
+ */
+public class FakeUpstream implements Container {
+  private static final Logger log = Logger.getLogger(FakeUpstream.class
+      .getName());
+
+  private final int port;
+  private final String baseUrl;
+  private final long publishIntervalMillis;
+  private final byte[] issue;
+  private final long startedAt = System.currentTimeMillis();
+  private final AtomicLong sessions = new AtomicLong();
+  private Connection connection;
+
+  /**
+   * @param port the port to listen on.
+   * @param issueSize the size of the issue PDFs in bytes.
+   * @param publishIntervalMillis how often a new issue is published.
+   */
+  public FakeUpstream(int port, int issueSize, long publishIntervalMillis) {
+    this.port = port;
+    this.baseUrl = "http://localhost:" + port;
+    this.publishIntervalMillis = publishIntervalMillis;
+    this.issue = new byte[issueSize];
+    new Random(42).nextBytes(issue);
+    System.arraycopy("%PDF-1.4\n".getBytes(), 0, issue, 0, 9);
+  }
+
+  /** The URL to configure as the server's upstream. */
+  public String getBaseUrl() {
+    return baseUrl;
+  }
+
+  public void start() throws IOException {
+    connection = new SocketConnection(this);
+    connection.connect(new InetSocketAddress(port));
+    log.info("Fake upstream listening on " + baseUrl);
+  }
+
+  public void stop() throws IOException {
+    connection.close();
+  }
+
+  @Override
+  public void handle(Request req, Response resp) {
+    try {
+      String path = req.getPath().getPath();
+      if (path.equals("/epaper/login.php")) {
+        if (req.getMethod().equals("POST")) {
+          resp.setCode(302);
+          resp.set("Location", baseUrl + "/epaper/overview.php");
+          send(resp, "text/html", new byte[0]);
+        } else {
+          resp.set("Set-Cookie", "CMS_SESSION_ID=soak"
+              + sessions.incrementAndGet() + "; path=/");
+          send(resp, "text/html", "<html>login</html>".getBytes("UTF-8"));
+        }
+      } else if (path.equals("/epaper/overview.php")) {
+        // The issue of a date never changes, the latest one does.
+        String date = req.getParameter("datum");
+        String id = date != null ? date : String.valueOf(getGeneration());
+        send(resp, "text/html", ("<html><a href=\"" + baseUrl
+            + "/epaper/pdf.php?id=" + id + "\" class=\"pdf\">PDF</a></html>")
+            .getBytes("UTF-8"));
+      } else if (path.equals("/epaper/pdf.php")) {
+        send(resp, "application/pdf", issue);
+      } else {
+        resp.setCode(404);
+        send(resp, "text/plain", new byte[0]);
+      }
+    } catch (IOException ex) {
+      log.warning("Fake upstream failed: " + ex.getMessage());
+    }
+  }
+
+  private long getGeneration() {
+    return (System.currentTimeMillis() - startedAt) / publishIntervalMillis;
+  }
+
+  private static void send(Response resp, String mimeType, byte[] body)
+      throws IOException {
+    resp.set("Content-Type", mimeType);
+    resp.setContentLength(body.length);
+    OutputStream output = resp.getOutputStream();
+    try {
+      output.write(body);
+    } finally {
+      output.close();
+      resp.close();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone.soak;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples the resources of this process that leak slowly: open file
+ * descriptors, heap, threads and sockets. After the run, it tells whether any
+ * of them trends upward.
+ * <p>
+ * File descriptors and sockets are read from /proc, so they are only sampled
+ * on Linux.
+ */
+public class ResourceSampler {
+  /** The names of the sampled metrics, in the order of a sample. */
+  public static final String[] METRICS = { "fds", "heap_kb", "threads",
+      "established", "close_wait", "time_wait" };
+
+  // ESTABLISHED, TIME_WAIT and CLOSE_WAIT as listed in /proc/net/tcp.
+  private static final String[] TCP_STATES = { "01", "08", "06" };
+
+  private final int[] ports;
+  private final List<long[]> samples = new ArrayList<long[]>();
+
+  /**
+   * @param ports the local ports whose sockets are counted.
+   */
+  public ResourceSampler(int... ports) {
+    this.ports = ports;
+  }
+
+  /**
+   * Takes a sample and returns it.
+   */
+  public long[] sample() {
+    // Collect first, so only live objects count.
+    System.gc();
+    Runtime runtime = Runtime.getRuntime();
+    long[] sockets = countSockets();
+    long[] sample = { countFileDescriptors(),
+        (runtime.totalMemory() - runtime.freeMemory()) / 1024,
+        ManagementFactory.getThreadMXBean().getThreadCount(), sockets[0],
+        sockets[1], sockets[2] };
+    samples.add(sample);
+    return sample;
+  }
+
+  /**
+   * Returns the metrics that grew by more than their tolerance over the run,
+   * judged by the least-squares slope of the samples after the warm-up.
+   *
+   * @param warmUpSamples how many samples at the start are ignored.
+   * @param tolerances the allowed growth of each metric.
+   */
+  public List<String> getLeaks(int warmUpSamples, long[] tolerances) {
+    List<String> leaks = new ArrayList<String>();
+    int n = samples.size() - warmUpSamples;
+    if (n < 3) {
+      return leaks;
+    }
+    for (int metric = 0; metric < METRICS.length; ++metric) {
+      double[] values = new double[n];
+      for (int i = 0; i < n; ++i) {
+        values[i] = samples.get(warmUpSamples + i)[metric];
+      }
+      double growth = getSlope(values) * (n - 1);
+      if (values[0] >= 0 && growth > tolerances[metric]) {
+        leaks.add(METRICS[metric] + " grew by " + Math.round(growth)
+            + ", tolerance " + tolerances[metric]);
+      }
+    }
+    return leaks;
+  }
+
+  private static double getSlope(double[] values) {
+    double meanX = (values.length - 1) / 2.0;
+    double meanY = 0;
+    for (double value : values) {
+      meanY += value;
+    }
+    meanY /= values.length;
+    double covariance = 0;
+    double variance = 0;
+    for (int x = 0; x < values.length; ++x) {
+      covariance += (x - meanX) * (values[x] - meanY);
+      variance += (x - meanX) * (x - meanX);
+    }
+    return covariance / variance;
+  }
+
+  private static long countFileDescriptors() {
+    String[] fds = new File("/proc/self/fd").list();
+    return fds != null ? fds.length : -1;
+  }
+
+  /**
+   * Counts the sockets from or to our ports by state, see {@link #TCP_STATES}.
+   */
+  private long[] countSockets() {
+    long[] counts = new long[TCP_STATES.length];
+    boolean found = false;
+    for (String table : new String[] { "/proc/net/tcp", "/proc/net/tcp6" }) {
+      try {
+        BufferedReader reader = new BufferedReader(new FileReader(table));
+        try {
+          found = true;
+          // Skip the header.
+          String line = reader.readLine();
+          while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 4 || !isOurs(fields[1]) && !isOurs(fields[2])) {
+              continue;
+            }
+            for (int i = 0; i < TCP_STATES.length; ++i) {
+              if (TCP_STATES[i].equals(fields[3])) {
+                ++counts[i];
+              }
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      } catch (IOException ex) {
+        // Not on Linux, or no IPv6.
+      }
+    }
+    if (!found) {
+      for (int i = 0; i < counts.length; ++i) {
+        counts[i] = -1;
+      }
+    }
+    return counts;
+  }
+
+  /** Whether the given "address:port" in hex is on one of our ports. */
+  private boolean isOurs(String address) {
+    int port = Integer.parseInt(address.substring(address.indexOf(':') + 1),
+        16);
+    for (int ourPort : ports) {
+      if (port == ourPort) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Sascha Hberling
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.haeberling.kapub.standalone.soak;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.haeberling.kapub.standalone.Main;
+
+/**
+ * Runs the server against a fake upstream for hours and fails if file
+ * descriptors, heap, threads or sockets trend upward.
+ * <p>
+ * Usage: SoakTest [minutes] [seconds between samples] [clients]. The server
+ * runs in this process on its usual port, with its data in a temporary
+ * directory. One sample per line is printed as CSV. The exit code is 0 if
+ * nothing leaked and 1 otherwise.
+ */
+public class SoakTest {
+  private static final Logger log = Logger.getLogger(SoakTest.class
+      .getName());
+  private static final int SERVER_PORT = 9999;
+  private static final int UPSTREAM_PORT = 9998;
+  private static final String SERVER_URL = "http://localhost:" + SERVER_PORT;
+  /** The average pause of a client between two requests. */
+  private static final int THINK_MILLIS = 100;
+
+  /** The allowed growth of each of {@link ResourceSampler#METRICS}. */
+  private static final long[] TOLERANCES = { 20, 32 * 1024, 10, 10, 5,
+      Long.MAX_VALUE };
+
+  private static final AtomicLong requests = new AtomicLong();
+  private static final AtomicLong failures = new AtomicLong();
+  private static volatile boolean running = true;
+
+  public static void main(String[] args) throws Exception {
+    long minutes = args.length > 0 ? Long.parseLong(args[0]) : 180;
+    long sampleSeconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+    int clients = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+    // Must be set before the server's config is loaded.
+    File dataDirectory = File.createTempFile("kapub-soak", "");
+    dataDirectory.delete();
+    dataDirectory.mkdirs();
+    FileOutputStream accounts = new FileOutputStream(new File(dataDirectory,
+        "accounts"));
+    accounts.write("soak soak@example.com secret\n".getBytes("UTF-8"));
+    accounts.close();
+    FakeUpstream upstream = new FakeUpstream(UPSTREAM_PORT, 512 * 1024,
+        5 * 60 * 1000);
+    System.setProperty("kapub.upstream", upstream.getBaseUrl());
+    System.setProperty("kapub.cachePath", dataDirectory.getPath());
+    System.setProperty("kapub.latestIssueFreshMillis", "10000");
+    // Per-request logging would dominate the run.
+    Logger.getLogger("de.haeberling.kapub").setLevel(Level.WARNING);
+
+    upstream.start();
+    Main.main(new String[0]);
+    waitUntilReady();
+
+    ResourceSampler sampler = new ResourceSampler(SERVER_PORT, UPSTREAM_PORT);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < clients; ++i) {
+      Thread thread = new Thread(new Client(i), "SoakClient-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      threads.add(thread);
+    }
+
+    System.out.println("minute," + join(ResourceSampler.METRICS)
+        + ",requests,failures");
+    long start = System.currentTimeMillis();
+    long end = start + minutes * 60 * 1000;
+    int sampleCount = 0;
+    while (System.currentTimeMillis() < end) {
+      Thread.sleep(sampleSeconds * 1000);
+      long[] sample = sampler.sample();
+      ++sampleCount;
+      StringBuilder line = new StringBuilder(String.format(Locale.US, "%.1f",
+          (System.currentTimeMillis() - start) / 60000.0));
+      for (long value : sample) {
+        line.append(',').append(value);
+      }
+      System.out.println(line + "," + requests.get() + "," + failures.get());
+    }
+
+    running = false;
+    for (Thread thread : threads) {
+      thread.join(30 * 1000);
+    }
+    // The first fifth of the run is warm-up: caches fill, pools grow.
+    List<String> leaks = sampler.getLeaks(sampleCount / 5, TOLERANCES);
+    for (String leak : leaks) {
+      System.out.println("LEAK: " + leak);
+    }
+    System.out.println(leaks.isEmpty() ? "PASSED" : "FAILED");
+    System.exit(leaks.isEmpty() ? 0 : 1);
+  }
+
+  /**
+   * Hits the server like its users do: the index page and its issue, issues
+   * by date, assets and stats, event streams and downloads that are dropped
+   * half-way.
+   */
+  private static class Client implements Runnable {
+    private final Random random;
+
+    Client(int seed) {
+      this.random = new Random(seed);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          Thread.sleep(random.nextInt(2 * THINK_MILLIS));
+          int action = random.nextInt(20);
+          if (action < 8) {
+            String index = get("/", Integer.MAX_VALUE);
+            int urlStart = index.indexOf("url=");
+            if (urlStart >= 0) {
+              get("/" + index.substring(urlStart + 4,
+                  index.indexOf('"', urlStart)), Integer.MAX_VALUE);
+            }
+          } else if (action < 12) {
+            get("/issue/" + getRecentDate(random.nextInt(30)),
+                Integer.MAX_VALUE);
+          } else if (action < 17) {
+            get(random.nextBoolean() ? "/stats" : "/icon57.png",
+                Integer.MAX_VALUE);
+          } else if (action < 18) {
+            // The server only notices the client left with its next
+            // keep-alive, so these add up to a steady, not a growing, count.
+            get("/events", 16);
+          } else {
+            // A client that goes away in the middle of a download.
+            get("/issue/" + getRecentDate(0), 1024);
+          }
+          requests.incrementAndGet();
+        } catch (IOException ex) {
+          failures.incrementAndGet();
+          log.fine("Request failed: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Requests the given path and reads at most the given number of bytes of the
+   * response. Returns the start of the response as a string.
+   */
+  private static String get(String path, int maxBytes) throws IOException {
+    HttpURLConnection urlConn = (HttpURLConnection) new URL(SERVER_URL + path)
+        .openConnection();
+    urlConn.setConnectTimeout(10000);
+    urlConn.setReadTimeout(60000);
+    try {
+      if (urlConn.getResponseCode() >= 400) {
+        throw new IOException(path + ": " + urlConn.getResponseCode());
+      }
+      InputStream input = urlConn.getInputStream();
+      try {
+        StringBuilder start = new StringBuilder();
+        InputStreamReader reader = new InputStreamReader(input, "ISO-8859-1");
+        char[] buffer = new char[4096];
+        int total = 0;
+        int num;
+        while (total < maxBytes && (num = reader.read(buffer)) != -1) {
+          if (start.length() < 4096) {
+            start.append(buffer, 0, num);
+          }
+          total += num;
+        }
+        return start.toString();
+      } finally {
+        input.close();
+      }
+    } finally {
+      urlConn.disconnect();
+    }
+  }
+
+  private static String getRecentDate(int daysAgo) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.add(Calendar.DAY_OF_MONTH, -daysAgo);
+    return new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(calendar
+        .getTime());
+  }
+
+  private static void waitUntilReady() throws InterruptedException {
+    while (true) {
+      try {
+        get("/ready", Integer.MAX_VALUE);
+        return;
+      } catch (IOException ex) {
+        Thread.sleep(500);
+      }
+    }
+  }
+
+  private static String join(String[] values) {
+    StringBuilder joined = new StringBuilder();
+    for (String value : values) {
+      joined.append(joined.length() > 0 ? "," : "").append(value);
+    }
+    return joined.toString();
+  }
+}